@@ -0,0 +1,78 @@
+/*
+ * Copyright (c) 2017 Peter Yuill
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package au.id.yuill.topothin.abs;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Timespan;
+
+/**
+ * A Java Flight Recorder event for a completed phase. This source set is only compiled on JDK 11
+ * or later, by the jfr profile, and RunReport loads it by reflection when it is present.
+ *
+ * @version 1.0
+ * @author Peter Yuill
+ */
+@Name("au.id.yuill.topothin.Phase")
+@Label("Topothin Phase")
+@Category("Topothin")
+@Description("A phase of an ABS build or thinning run")
+public class PhaseEvent extends Event {
+
+    @Label("Name")
+    public String name;
+
+    @Label("Table")
+    public String table;
+
+    @Label("Wall Time")
+    @Timespan(Timespan.NANOSECONDS)
+    public long wallTime;
+
+    @Label("CPU Time")
+    @Timespan(Timespan.NANOSECONDS)
+    public long cpuTime;
+
+    @Label("Rows")
+    public long rows;
+
+    @Label("Vertices In")
+    public long verticesIn;
+
+    @Label("Vertices Out")
+    public long verticesOut;
+
+    @Label("Bytes Transferred")
+    @DataAmount
+    public long bytes;
+
+    @Label("Peak Heap")
+    @DataAmount
+    public long peakHeap;
+
+    public static void commit(Phase phase) {
+        PhaseEvent event = new PhaseEvent();
+        if (event.isEnabled()) {
+            event.name = phase.name;
+            event.table = phase.table;
+            event.wallTime = phase.wallNanos;
+            event.cpuTime = phase.cpuNanos;
+            event.rows = phase.rows.get();
+            event.verticesIn = phase.verticesIn.get();
+            event.verticesOut = phase.verticesOut.get();
+            event.bytes = phase.bytes.get();
+            event.peakHeap = phase.peakHeap;
+            event.commit();
+        }
+    }
+}
@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2017 Peter Yuill
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package au.id.yuill.topothin.abs.benchmark;
+
+import au.id.yuill.topothin.abs.AbsTable;
+import au.id.yuill.topothin.abs.AdminArea;
+import au.id.yuill.topothin.abs.TwkbReader;
+
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.PrecisionModel;
+import org.locationtech.jts.io.WKBReader;
+import org.locationtech.jts.io.WKBWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of geometry decoding as done when populating TopoCoordData, from EWKB and from TWKB.
+ *
+ * @version 1.0
+ * @author Peter Yuill
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DecodeBenchmark {
+
+    @Param({"48", "96", "192"})
+    public int size;
+
+    protected List<byte[]> ewkbList = new ArrayList();
+    protected List<byte[]> twkbList = new ArrayList();
+
+    @Setup
+    public void setup() {
+        SyntheticLayers layers = new SyntheticLayers(size, 32);
+        WKBWriter writer = new WKBWriter(2, true);
+        TwkbEncoder encoder = new TwkbEncoder();
+        for (AdminArea area: layers.layer("P", SyntheticLayers.POA_BLOCK)) {
+            ewkbList.add(writer.write(area.geom));
+            twkbList.add(encoder.encode(area.geom, 7));
+        }
+    }
+
+    @Benchmark
+    public int decodeEwkb() throws Exception {
+        WKBReader reader = new WKBReader();
+        int points = 0;
+        for (byte[] bytes: ewkbList) {
+            points += reader.read(bytes).getNumPoints();
+        }
+        return points;
+    }
+
+    @Benchmark
+    public int decodeTwkb() throws Exception {
+        TwkbReader reader = new TwkbReader(new GeometryFactory(new PrecisionModel(), AbsTable.SRID));
+        int points = 0;
+        for (byte[] bytes: twkbList) {
+            points += reader.read(bytes).getNumPoints();
+        }
+        return points;
+    }
+}
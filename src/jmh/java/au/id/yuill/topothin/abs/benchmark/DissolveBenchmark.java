@@ -0,0 +1,85 @@
+/*
+ * Copyright (c) 2017 Peter Yuill
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package au.id.yuill.topothin.abs.benchmark;
+
+import au.id.yuill.topothin.abs.Lga;
+import au.id.yuill.topothin.abs.StateDissolver;
+
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.MultiPolygon;
+import org.locationtech.jts.geom.util.GeometryCombiner;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of dissolving LGAs into states, by shared edges and by the combine and buffer(0)
+ * approach ThinAbsTables used to take.
+ *
+ * @version 1.0
+ * @author Peter Yuill
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class DissolveBenchmark {
+
+    @Param({"48", "96", "192"})
+    public int size;
+
+    protected GeometryFactory factory;
+    protected Map<String, List<MultiPolygon>> stateMap = new HashMap();
+
+    @Setup
+    public void setup() {
+        SyntheticLayers layers = new SyntheticLayers(size, 8);
+        factory = layers.getFactory();
+        for (Lga lga: layers.lgaLayer()) {
+            stateMap.computeIfAbsent(lga.steCode, k -> new ArrayList()).add(lga.geom);
+        }
+    }
+
+    @Benchmark
+    public int dissolveEdges() {
+        StateDissolver dissolver = new StateDissolver(factory);
+        int points = 0;
+        for (Map.Entry<String, List<MultiPolygon>> entry: stateMap.entrySet()) {
+            points += dissolver.dissolve(entry.getKey(), entry.getValue()).getNumPoints();
+        }
+        return points;
+    }
+
+    @Benchmark
+    public int combineBuffer() {
+        int points = 0;
+        for (List<MultiPolygon> mpList: stateMap.values()) {
+            Geometry comb = GeometryCombiner.combine(mpList);
+            points += comb.buffer(0.0).getNumPoints();
+        }
+        return points;
+    }
+}
@@ -0,0 +1,126 @@
+/*
+ * Copyright (c) 2017 Peter Yuill
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package au.id.yuill.topothin.abs.benchmark;
+
+import au.id.yuill.topothin.abs.AdminArea;
+import au.id.yuill.topothin.abs.PointLookup;
+
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.Point;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of point lookups against the synthetic postcode, LGA, SED and CED layers, in
+ * lookups per second on one thread. A prepared contains test over each layer in turn is included
+ * for comparison.
+ *
+ * @version 1.0
+ * @author Peter Yuill
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class LookupBenchmark {
+
+    protected static final int POINTS = 10000;
+
+    @Param({"96", "192"})
+    public int size;
+
+    protected PointLookup lookup;
+    protected GeometryFactory factory;
+    protected List<List<AdminArea>> layerList;
+    protected double[] x = new double[POINTS];
+    protected double[] y = new double[POINTS];
+
+    @Setup
+    public void setup() {
+        SyntheticLayers layers = new SyntheticLayers(size, 8);
+        layerList = new ArrayList();
+        layerList.add(layers.layer("P", SyntheticLayers.POA_BLOCK));
+        layerList.add(new ArrayList(layers.lgaLayer()));
+        layerList.add(layers.layer("S", SyntheticLayers.SED_BLOCK));
+        layerList.add(layers.layer("C", SyntheticLayers.CED_BLOCK));
+        lookup = new PointLookup();
+        String[] names = {"poa", "lga", "sed", "ced"};
+        for (int i = 0; i < names.length; i++) {
+            lookup.addLayer(names[i], layerList.get(i));
+            for (AdminArea area: layerList.get(i)) {
+                area.prepared = PreparedGeometryFactory.prepare(area.geom);
+            }
+        }
+        factory = layers.getFactory();
+        Envelope extent = new Envelope();
+        for (AdminArea area: layerList.get(0)) {
+            extent.expandToInclude(area.geom.getEnvelopeInternal());
+        }
+        Random random = new Random(42);
+        for (int i = 0; i < POINTS; i++) {
+            x[i] = extent.getMinX() + random.nextDouble() * extent.getWidth();
+            y[i] = extent.getMinY() + random.nextDouble() * extent.getHeight();
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(POINTS)
+    public int lookup() {
+        int found = 0;
+        for (int i = 0; i < POINTS; i++) {
+            String[] codes = lookup.lookup(x[i], y[i]);
+            if (codes[0] != null) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(POINTS)
+    public int preparedScan() {
+        int found = 0;
+        for (int i = 0; i < POINTS; i++) {
+            Point point = factory.createPoint(new Coordinate(x[i], y[i]));
+            for (List<AdminArea> areaList: layerList) {
+                for (AdminArea area: areaList) {
+                    PreparedGeometry prepared = area.prepared;
+                    if (prepared.getGeometry().getEnvelopeInternal().contains(x[i], y[i]) && prepared.contains(point)) {
+                        if (areaList == layerList.get(0)) {
+                            found++;
+                        }
+                        break;
+                    }
+                }
+            }
+        }
+        return found;
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * Copyright (c) 2017 Peter Yuill
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package au.id.yuill.topothin.abs.benchmark;
+
+import au.id.yuill.topothin.abs.AdminArea;
+import au.id.yuill.topothin.abs.AdminOverlay;
+import au.id.yuill.topothin.abs.AdminShare;
+import au.id.yuill.topothin.abs.Lga;
+
+import org.locationtech.jts.geom.Geometry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of postcode attribution against the LGA, SED and CED layers. The full scan with
+ * unprepared predicates, as BuildTables used to do, is included for comparison.
+ *
+ * @version 1.0
+ * @author Peter Yuill
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class OverlayBenchmark {
+
+    @Param({"48", "96", "192"})
+    public int size;
+
+    protected List<AdminArea> poaList;
+    protected List<Lga> lgaList;
+    protected List<AdminArea> sedList;
+    protected List<AdminArea> cedList;
+
+    @Setup
+    public void setup() {
+        SyntheticLayers layers = new SyntheticLayers(size, 8);
+        poaList = layers.layer("P", SyntheticLayers.POA_BLOCK);
+        lgaList = layers.lgaLayer();
+        sedList = layers.layer("S", SyntheticLayers.SED_BLOCK);
+        cedList = layers.layer("C", SyntheticLayers.CED_BLOCK);
+    }
+
+    @Benchmark
+    public int apportion() {
+        List<AdminOverlay> overlayList = new ArrayList();
+        overlayList.add(new AdminOverlay("lga", lgaList));
+        overlayList.add(new AdminOverlay("sed", sedList));
+        overlayList.add(new AdminOverlay("ced", cedList));
+        int shares = 0;
+        for (AdminArea poa: poaList) {
+            for (AdminOverlay overlay: overlayList) {
+                List<AdminShare> shareList = overlay.apportion(poa.geom);
+                shares += shareList.size();
+            }
+        }
+        return shares;
+    }
+
+    @Benchmark
+    public int fullScan() {
+        int shares = 0;
+        for (AdminArea poa: poaList) {
+            shares += fullScan(poa.geom, lgaList);
+            shares += fullScan(poa.geom, sedList);
+            shares += fullScan(poa.geom, cedList);
+        }
+        return shares;
+    }
+
+    protected int fullScan(Geometry geom, List<? extends AdminArea> areaList) {
+        int shares = 0;
+        for (AdminArea area: areaList) {
+            if (geom.coveredBy(area.geom)) {
+                shares++;
+            } else if (geom.overlaps(area.geom)) {
+                if (AdminOverlay.intersectionArea(geom, area.geom) > 0.0) {
+                    shares++;
+                }
+            }
+        }
+        return shares;
+    }
+}
@@ -0,0 +1,77 @@
+/*
+ * Copyright (c) 2017 Peter Yuill
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package au.id.yuill.topothin.abs.benchmark;
+
+import au.id.yuill.topothin.abs.AdminArea;
+import au.id.yuill.topothin.abs.GeoJson;
+
+import org.locationtech.jts.io.WKBWriter;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Benchmark of the GeoJSON and hex EWKB encoding done when saving thinned geometry.
+ *
+ * @version 1.0
+ * @author Peter Yuill
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@Fork(1)
+public class SerialiseBenchmark {
+
+    @Param({"48", "96", "192"})
+    public int size;
+
+    protected List<AdminArea> poaList;
+
+    @Setup
+    public void setup() {
+        poaList = new SyntheticLayers(size, 32).layer("P", SyntheticLayers.POA_BLOCK);
+    }
+
+    @Benchmark
+    public long geoJson() {
+        long length = 0;
+        for (AdminArea poa: poaList) {
+            length += GeoJson.write(poa.geom).length();
+        }
+        return length;
+    }
+
+    @Benchmark
+    public long geoJsonParallel() {
+        return poaList.parallelStream().mapToLong(poa -> GeoJson.write(poa.geom).length()).sum();
+    }
+
+    @Benchmark
+    public long wkbHex() {
+        WKBWriter writer = new WKBWriter(2, true);
+        long length = 0;
+        for (AdminArea poa: poaList) {
+            length += WKBWriter.toHex(writer.write(poa.geom)).length();
+        }
+        return length;
+    }
+}
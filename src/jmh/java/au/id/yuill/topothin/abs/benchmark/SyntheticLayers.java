@@ -0,0 +1,157 @@
+/*
+ * Copyright (c) 2017 Peter Yuill
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package au.id.yuill.topothin.abs.benchmark;
+
+import au.id.yuill.topothin.abs.AbsTable;
+import au.id.yuill.topothin.abs.AdminArea;
+import au.id.yuill.topothin.abs.Lga;
+
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.MultiPolygon;
+import org.locationtech.jts.geom.Polygon;
+import org.locationtech.jts.geom.PrecisionModel;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Generates synthetic tessellated admin layers for benchmarks, so no database is needed.
+ * <br><br>
+ * All layers are built on one grid of cells with jittered corners. Each cell side carries a run
+ * of noisy detail vertices generated from the side's position, so adjacent polygons of any layer
+ * share exactly the same vertices along common boundaries, as ABS layers mostly do. A layer is a
+ * tessellation of square blocks of cells; layers with block sizes that do not divide each other
+ * give postcodes that straddle admin boundaries.
+ *
+ * @version 1.0
+ * @author Peter Yuill
+ */
+public class SyntheticLayers {
+
+    public static final int POA_BLOCK = 3;
+    public static final int LGA_BLOCK = 8;
+    public static final int SED_BLOCK = 12;
+    public static final int CED_BLOCK = 16;
+
+    protected static final double ORIGIN_LON = 140.0;
+    protected static final double ORIGIN_LAT = -38.0;
+    protected static final double CELL_SIZE = 0.01;
+
+    protected int size;
+    protected int detail;
+    protected GeometryFactory factory = new GeometryFactory(new PrecisionModel(), AbsTable.SRID);
+
+    /**
+     * @param size the number of cells along each side of the grid
+     * @param detail the number of detail vertices along each cell side
+     */
+    public SyntheticLayers(int size, int detail) {
+        this.size = size;
+        this.detail = detail;
+    }
+
+    public GeometryFactory getFactory() {
+        return factory;
+    }
+
+    public List<AdminArea> layer(String prefix, int block) {
+        List<AdminArea> areaList = new ArrayList();
+        for (int x = 0; x < size; x += block) {
+            for (int y = 0; y < size; y += block) {
+                AdminArea area = new AdminArea();
+                area.code = prefix + x + "_" + y;
+                area.geom = blockPolygon(x, y, Math.min(block, size - x), Math.min(block, size - y));
+                areaList.add(area);
+            }
+        }
+        return areaList;
+    }
+
+    /**
+     * Generate LGAs, with the west half of the grid in state 1 and the east half in state 2.
+     */
+    public List<Lga> lgaLayer() {
+        List<Lga> lgaList = new ArrayList();
+        for (AdminArea area: layer("L", LGA_BLOCK)) {
+            Lga lga = new Lga();
+            lga.code = area.code;
+            lga.geom = area.geom;
+            lga.steCode = area.geom.getEnvelopeInternal().getMinX() < ORIGIN_LON + size * CELL_SIZE / 2 ? "1" : "2";
+            lgaList.add(lga);
+        }
+        return lgaList;
+    }
+
+    /**
+     * Build the polygon of a block of cells by walking its perimeter anticlockwise.
+     */
+    protected MultiPolygon blockPolygon(int x0, int y0, int w, int h) {
+        List<Coordinate> coords = new ArrayList();
+        for (int x = x0; x < x0 + w; x++) {
+            addSide(coords, x, y0, true, false);
+        }
+        for (int y = y0; y < y0 + h; y++) {
+            addSide(coords, x0 + w, y, false, false);
+        }
+        for (int x = x0 + w - 1; x >= x0; x--) {
+            addSide(coords, x, y0 + h, true, true);
+        }
+        for (int y = y0 + h - 1; y >= y0; y--) {
+            addSide(coords, x0, y, false, true);
+        }
+        coords.add(new Coordinate(coords.get(0)));
+        Polygon polygon = factory.createPolygon(coords.toArray(new Coordinate[coords.size()]));
+        return factory.createMultiPolygon(new Polygon[] {polygon});
+    }
+
+    /**
+     * Add a cell side without its end point. Sides run from grid point (x, y) east or north and
+     * may be walked in reverse.
+     */
+    protected void addSide(List<Coordinate> coords, int x, int y, boolean horizontal, boolean reverse) {
+        int x1 = horizontal ? x + 1 : x;
+        int y1 = horizontal ? y : y + 1;
+        Coordinate start = corner(x, y);
+        Coordinate end = corner(x1, y1);
+        List<Coordinate> side = new ArrayList();
+        side.add(start);
+        for (int i = 1; i <= detail; i++) {
+            double t = (double)i / (detail + 1);
+            double offset = noise(x, y, horizontal ? i : -i) * CELL_SIZE * 0.05;
+            double px = start.x + (end.x - start.x) * t + (horizontal ? 0.0 : offset);
+            double py = start.y + (end.y - start.y) * t + (horizontal ? offset : 0.0);
+            side.add(new Coordinate(px, py));
+        }
+        side.add(end);
+        if (reverse) {
+            Collections.reverse(side);
+        }
+        coords.addAll(side.subList(0, side.size() - 1));
+    }
+
+    protected Coordinate corner(int x, int y) {
+        double jx = (x == 0 || x == size) ? 0.0 : noise(x, y, 1000) * 0.2;
+        double jy = (y == 0 || y == size) ? 0.0 : noise(x, y, 2000) * 0.2;
+        return new Coordinate(ORIGIN_LON + (x + jx) * CELL_SIZE, ORIGIN_LAT + (y + jy) * CELL_SIZE);
+    }
+
+    /**
+     * A deterministic pseudo random value in [-1, 1) for a grid position and salt.
+     */
+    protected static double noise(int x, int y, int salt) {
+        long z = ((long)x << 42) ^ ((long)y << 21) ^ (salt & 0x1FFFFFL);
+        z += 0x9E3779B97F4A7C15L;
+        z = (z ^ (z >>> 30)) * 0xBF58476D1CE4E5B9L;
+        z = (z ^ (z >>> 27)) * 0x94D049BB133111EBL;
+        z = z ^ (z >>> 31);
+        return (z >>> 11) * 0x1.0p-52 - 1.0;
+    }
+}
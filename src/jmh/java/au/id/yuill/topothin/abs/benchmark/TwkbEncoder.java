@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2017 Peter Yuill
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package au.id.yuill.topothin.abs.benchmark;
+
+import org.locationtech.jts.geom.CoordinateSequence;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.MultiPolygon;
+import org.locationtech.jts.geom.Polygon;
+
+import java.io.ByteArrayOutputStream;
+
+/**
+ * Encodes MultiPolygons in TWKB format as ST_AsTWKB does, to produce benchmark input for
+ * TwkbReader.
+ *
+ * @version 1.0
+ * @author Peter Yuill
+ */
+public class TwkbEncoder {
+
+    protected ByteArrayOutputStream out;
+    protected double scale;
+    protected long lastX;
+    protected long lastY;
+
+    public byte[] encode(MultiPolygon mp, int precision) {
+        out = new ByteArrayOutputStream();
+        scale = Math.pow(10.0, precision);
+        lastX = 0;
+        lastY = 0;
+        out.write(6 | (int)(zigzag(precision) << 4));
+        out.write(0);
+        writeUnsigned(mp.getNumGeometries());
+        for (int p = 0; p < mp.getNumGeometries(); p++) {
+            Polygon polygon = (Polygon)mp.getGeometryN(p);
+            writeUnsigned(polygon.getNumInteriorRing() + 1);
+            writeRing(polygon.getExteriorRing());
+            for (int r = 0; r < polygon.getNumInteriorRing(); r++) {
+                writeRing(polygon.getInteriorRingN(r));
+            }
+        }
+        return out.toByteArray();
+    }
+
+    protected void writeRing(LineString ring) {
+        CoordinateSequence seq = ring.getCoordinateSequence();
+        writeUnsigned(seq.size());
+        for (int i = 0; i < seq.size(); i++) {
+            long x = Math.round(seq.getX(i) * scale);
+            long y = Math.round(seq.getY(i) * scale);
+            writeUnsigned(zigzag(x - lastX));
+            writeUnsigned(zigzag(y - lastY));
+            lastX = x;
+            lastY = y;
+        }
+    }
+
+    protected void writeUnsigned(long value) {
+        while ((value & ~0x7FL) != 0) {
+            out.write((int)((value & 0x7F) | 0x80));
+            value >>>= 7;
+        }
+        out.write((int)value);
+    }
+
+    protected static long zigzag(long value) {
+        return (value << 1) ^ (value >> 63);
+    }
+}
@@ -0,0 +1,301 @@
+/*
+ * Copyright (c) 2017 Peter Yuill
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package au.id.yuill.topothin.abs;
+
+import au.id.yuill.topothin.DefaultSimplifier;
+import au.id.yuill.topothin.Row;
+import au.id.yuill.topothin.TopoCoordData;
+
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.MultiPolygon;
+import org.locationtech.jts.geom.Point;
+import org.locationtech.jts.io.WKBWriter;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Build and thin the ABS display tables in one run, doing the work of BuildTables followed by
+ * ThinAbsTables while loading each source table only once.
+ * <br><br>
+ * The decoded source geometry is shared. Postcodes are apportioned across the LGA, SED, CED and
+ * state layers on one thread while the same rows are thinned, simplified for any zoom levels and
+ * dissolved into states on another. TopoCoordData replaces the geometry of each row with the
+ * thinned geometry but does not change the source geometry, which the attribution holders keep.
+ * Display names and centroids are taken from the source rows before thinning starts.
+ * <br><br>
+ * Nothing is written until both stages are complete. The display tables, postcode and
+ * postcode_concordance are then copied to staging tables and swapped in together in a single
+ * transaction, so readers never see display tables from one run with postcodes from another.
+ * Missing tables are created, existing tables are replaced.
+ * <br><br>
+ * With a source directory the source tables are read from the published shapefiles, see
+ * ShapefileSource, and the database is only used for the display and postcode tables.
+ *
+ * @version 1.0
+ * @author Peter Yuill
+ */
+public class AbsPipeline {
+
+    public static String poaReleaseYear;
+    public static String lgaReleaseYear;
+    public static String sedReleaseYear;
+    public static String cedReleaseYear;
+    public static String dbUrl;
+    public static String dbUser;
+    public static String dbPass;
+    public static int threads = Integer.getInteger("topothin.threads", Runtime.getRuntime().availableProcessors());
+    public static Connection conn;
+
+    public static void main(String[] args) throws Exception {
+        if (args.length == 7) {
+            poaReleaseYear = args[0];
+            lgaReleaseYear = args[1];
+            sedReleaseYear = args[2];
+            cedReleaseYear = args[3];
+            dbUrl = args[4];
+            dbUser = args[5];
+            dbPass = args[6];
+        } else {
+            System.out.println("usage: AbsPipeline poaReleaseYear lgaReleaseYear sedReleaseYear cedReleaseYear dbUrl dbUser dbPassword");
+            System.out.println("options: -Dtopothin.threads=n (default available processors)");
+            System.out.println("         -Dtopothin.zooms=4,8,12 (also save geometry simplified for these zoom levels)");
+            System.out.println("         -Dtopothin.tiles=dir (export vector tiles, -Dtopothin.tileMinZoom=0 -Dtopothin.tileMaxZoom=12)");
+            System.out.println("         -Dtopothin.topojson=file -Dtopothin.topojsonTable=name (export a TopoJSON topology, -Dtopothin.topojsonQuantization=1000000)");
+            System.out.println("         -Dtopothin.hilbert=true (thin and write rows in Hilbert curve order)");
+            System.out.println("         -Dtopothin.sourceDir=dir (read source tables from ABS shapefiles in dir)");
+            System.out.println("         -Dtopothin.payloads=true (save gzip and brotli payloads of features and state collections)");
+            System.out.println("         -Dtopothin.report=file (write a JSON report of run phases)");
+            System.exit(0);
+        }
+        Class.forName("org.postgresql.Driver");
+        conn = DriverManager.getConnection(dbUrl, dbUser, dbPass);
+        RunReport.get().setProgram("AbsPipeline");
+        createTables();
+
+        AbsTable poaTable = new AbsTable(poaReleaseYear, "poa", null);
+        AbsTable lgaTable = new LgaTable(lgaReleaseYear, null);
+        AbsTable sedTable = new AbsTable(sedReleaseYear, "sed", null);
+        AbsTable cedTable = new AbsTable(cedReleaseYear, "ced", null);
+        List<AbsTable> tableList = Arrays.asList(poaTable, lgaTable, sedTable, cedTable);
+
+        List<Row> sourceList = new ArrayList();
+        List<Poa> poaList = new ArrayList();
+        List<Lga> lgaList = new ArrayList();
+        List<AdminArea> sedList = new ArrayList();
+        List<AdminArea> cedList = new ArrayList();
+        ConcurrentLoader loader = new ConcurrentLoader(dbUrl, dbUser, dbPass, threads);
+        loader.load(tableList, row -> {
+            sourceList.add(row);
+            if (row.table == poaTable) {
+                Poa poa = new Poa();
+                poa.poaCode = row.code;
+                poa.geom = row.mp;
+                poaList.add(poa);
+            } else if (row.table == lgaTable) {
+                Lga lga = new Lga();
+                lga.code = row.code;
+                lga.steCode = ((LgaRow)row).stateCode;
+                lga.geom = row.mp;
+                lgaList.add(lga);
+            } else {
+                AdminArea area = new AdminArea();
+                area.code = row.code;
+                area.geom = row.mp;
+                if (row.table == sedTable) {
+                    sedList.add(area);
+                } else {
+                    cedList.add(area);
+                }
+            }
+        });
+
+        List<Row> rowList = HilbertOrder.sortIfEnabled(sourceList);
+        Phase phase = RunReport.start("populateDisplay", null);
+        Map<Row, Point> centroidMap = centroids(rowList);
+        List<Object[]> stateList = states(lgaTable, lgaList);
+        phase.rows.set(centroidMap.size() + stateList.size());
+        phase.end();
+        Map<String, Long> fingerprintMap = Fingerprints.of(rowList);
+
+        CompletableFuture<Void> attribution = CompletableFuture.runAsync(() ->
+                BuildTables.attribute(poaList, lgaList, sedList, cedList));
+
+        WKBWriter writer = new WKBWriter(2, true);
+        TopoCoordData tcd = new TopoCoordData(new DefaultSimplifier(), AbsTable.SRID);
+        ThinAbsTables.thin(tcd, rowList);
+        sourceList.clear();
+        rowList = null;
+        ZoomLevels levels = ThinAbsTables.simplifyLevels(conn, tableList, tcd);
+        Map<AbsTable, List<String[]>> geomMap = new LinkedHashMap();
+        for (AbsTable table: tableList) {
+            System.out.print("Encode " + table.tableName + " ");
+            geomMap.put(table, table.encodeGeometry(tcd.tableMap.get(table), writer, levels));
+        }
+        System.out.println("Create States");
+        List<Map<String, MultiPolygon>> stateGeomMapList =
+                ThinAbsTables.dissolveStates(tcd.tableMap.get(lgaTable), levels, tcd.factory, false);
+        List<String[]> stateGeomList = ThinAbsTables.encodeStates(stateGeomMapList, writer);
+
+        attribution.join();
+
+        System.out.println("Save");
+        phase = RunReport.start("save", null);
+        List<String> suffixList = AbsTable.suffixList(levels);
+        BulkWriter bulkWriter = new BulkWriter(conn);
+        long rows = 0;
+        for (AbsTable table: tableList) {
+            List<Object[]> displayList = new ArrayList();
+            for (Row row: HilbertOrder.sortIfEnabled(tcd.tableMap.get(table))) {
+                Point centroid = centroidMap.get(row);
+                displayList.add(new Object[] {row.code, row.name, centroid.getX(), centroid.getY()});
+            }
+            rows += copyDisplay(bulkWriter, table.tableName, suffixList, displayList, geomMap.get(table));
+        }
+        rows += copyDisplay(bulkWriter, "ste", suffixList, stateList, stateGeomList);
+        rows += BuildTables.copyPostcodes(bulkWriter, poaList);
+        bulkWriter.swap("poa_disp", "lga_disp", "sed_disp", "ced_disp", "ste_disp", "postcode", "postcode_concordance");
+        phase.rows.set(rows);
+        phase.bytes.set(bulkWriter.bytes);
+        phase.end();
+
+        TileExporter exporter = TileExporter.fromSystemProperties(tcd.factory, threads);
+        if (exporter != null) {
+            ThinAbsTables.exportTiles(exporter, tableList, tcd, stateGeomMapList.get(0));
+        }
+        TopoJsonWriter topoJson = TopoJsonWriter.fromSystemProperties();
+        if (topoJson != null) {
+            ThinAbsTables.exportTopoJson(conn, topoJson, tableList, tcd, stateGeomMapList.get(0));
+        }
+        PayloadCache payloads = PayloadCache.fromSystemProperties(threads);
+        if (payloads != null) {
+            ThinAbsTables.savePayloads(conn, payloads, tableList, tcd, stateGeomMapList.get(0));
+        }
+        Fingerprints.save(conn, fingerprintMap);
+        conn.close();
+        RunReport.get().writeIfRequested();
+    }
+
+    /**
+     * Create the display and postcode tables if they do not exist.
+     */
+    public static void createTables() throws Exception {
+        Statement stmt = conn.createStatement();
+        stmt.execute("create table if not exists poa_disp " + BuildTables.adminTableColumns("poa", 4));
+        stmt.execute("create table if not exists lga_disp " + BuildTables.adminTableColumns("lga", 5));
+        stmt.execute("create table if not exists sed_disp " + BuildTables.adminTableColumns("sed", 5));
+        stmt.execute("create table if not exists ced_disp " + BuildTables.adminTableColumns("ced", 3));
+        stmt.execute("create table if not exists ste_disp " + BuildTables.adminTableColumns("ste", 1));
+        stmt.execute("create table if not exists postcode " + BuildTables.POSTCODE_COLUMNS);
+        stmt.execute("create table if not exists postcode_concordance " + BuildTables.CONCORDANCE_COLUMNS);
+        stmt.close();
+    }
+
+    /**
+     * Compute the centroid of the source geometry of each row, in parallel on topothin.threads
+     * threads.
+     */
+    public static Map<Row, Point> centroids(List<Row> rowList) {
+        Point[] centroids = new Point[rowList.size()];
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            ForEachTask.forEachIndex(pool, rowList.size(), i -> centroids[i] = rowList.get(i).mp.getCentroid());
+        } finally {
+            pool.shutdown();
+        }
+        Map<Row, Point> centroidMap = new IdentityHashMap();
+        for (int i = 0; i < centroids.length; i++) {
+            centroidMap.put(rowList.get(i), centroids[i]);
+        }
+        return centroidMap;
+    }
+
+    /**
+     * Build the state display attributes. Names come from the LGA source table, the centroid is
+     * that of all of the LGA polygons in the state.
+     *
+     * @return the code, name, lon and lat of each state
+     */
+    public static List<Object[]> states(AbsTable lgaTable, List<Lga> lgaList) throws Exception {
+        Map<String, List<Geometry>> stateMap = new LinkedHashMap();
+        for (Lga lga: lgaList) {
+            List<Geometry> geomList = stateMap.get(lga.steCode);
+            if (geomList == null) {
+                geomList = new ArrayList();
+                stateMap.put(lga.steCode, geomList);
+            }
+            geomList.add(lga.geom);
+        }
+        Map<String, String> nameMap = new LinkedHashMap();
+        GeometrySource source = lgaTable.getGeometrySource();
+        if (source != null) {
+            for (String[] values: source.readAttributes(lgaTable, "ste_code" + lgaReleaseYear, "ste_name" + lgaReleaseYear)) {
+                nameMap.put(values[0], values[1]);
+            }
+        } else {
+            Statement stmt = conn.createStatement();
+            ResultSet rs = stmt.executeQuery("select distinct ste_code" + lgaReleaseYear + ", ste_name" + lgaReleaseYear +
+                    " from lga" + lgaReleaseYear);
+            while(rs.next()) {
+                nameMap.put(rs.getString(1), rs.getString(2));
+            }
+            rs.close();
+            stmt.close();
+        }
+        List<Object[]> stateList = new ArrayList();
+        for (Map.Entry<String, List<Geometry>> entry: stateMap.entrySet()) {
+            Geometry collection = entry.getValue().get(0).getFactory().buildGeometry(entry.getValue());
+            Point centroid = collection.getCentroid();
+            stateList.add(new Object[] {entry.getKey(), nameMap.get(entry.getKey()), centroid.getX(), centroid.getY()});
+        }
+        return stateList;
+    }
+
+    /**
+     * Copy display rows into a staging table for a display table.
+     *
+     * @param displayList the code, name, lon and lat of each row
+     * @param geomList the code followed by GeoJSON and hex EWKB geometry for each suffix
+     * @return the number of rows copied
+     */
+    protected static long copyDisplay(BulkWriter bulkWriter, String adminCode, List<String> suffixList,
+                                      List<Object[]> displayList, List<String[]> geomList) throws Exception {
+        StringBuilder columns = new StringBuilder();
+        columns.append(adminCode).append("_code, name, lon, lat");
+        for (String suffix: suffixList) {
+            columns.append(", geojson").append(suffix).append(", geom").append(suffix);
+        }
+        Map<String, String[]> codeMap = new HashMap();
+        for (String[] geoms: geomList) {
+            codeMap.put(geoms[0], geoms);
+        }
+        Object[] values = new Object[4 + 2 * suffixList.size()];
+        return bulkWriter.copy(bulkWriter.createStaging(adminCode + "_disp"), columns.toString(), copy -> {
+            for (Object[] display: displayList) {
+                System.arraycopy(display, 0, values, 0, 4);
+                String[] geoms = codeMap.get(display[0]);
+                for (int j = 4; j < values.length; j++) {
+                    values[j] = geoms == null ? null : geoms[j - 3];
+                }
+                copy.row(values);
+            }
+        }).rows;
+    }
+}
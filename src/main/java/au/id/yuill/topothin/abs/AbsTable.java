@@ -10,15 +10,22 @@ package au.id.yuill.topothin.abs;
 
 import au.id.yuill.topothin.*;
 
+import org.locationtech.jts.geom.GeometryFactory;
 import org.locationtech.jts.geom.MultiPolygon;
+import org.locationtech.jts.geom.PrecisionModel;
+import org.locationtech.jts.geom.impl.PackedCoordinateSequenceFactory;
 import org.locationtech.jts.io.WKBReader;
 import org.locationtech.jts.io.WKBWriter;
 
 import java.sql.Connection;
-import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
 
 /**
  * An implementation of the Table interface to deal with Australian Statistical Geography Standard
@@ -29,10 +36,19 @@ import java.util.List;
  */
 public class AbsTable implements Table {
 
+    public static final int SRID = 4283;
+
     protected String releaseYear;
     protected String tableName;
     protected String additionalWhere;
     protected int count;
+    protected int threads = Integer.getInteger("topothin.threads", Runtime.getRuntime().availableProcessors());
+    protected int fetchSize = Integer.getInteger("topothin.fetchSize", 1000);
+    protected Integer twkbPrecision = Integer.getInteger("topothin.twkbPrecision");
+    protected SnapshotCache snapshotCache = SnapshotCache.fromSystemProperties();
+    protected GridSnapper gridSnapper = GridSnapper.fromSystemProperties();
+    protected GeometrySource geometrySource = ShapefileSource.fromSystemProperties();
+    protected GeometryFactory sourceFactory = createFactory(SRID);
 
     public AbsTable(String releaseYear, String tableName, String additionalWhere) {
         this.releaseYear = releaseYear;
@@ -40,10 +56,185 @@ public class AbsTable implements Table {
         this.additionalWhere = additionalWhere;
     }
 
+    /**
+     * Set the number of rows fetched per round trip. A positive fetch size reads through a server
+     * side cursor so only one batch of rows is held in memory at a time. Zero reads the whole
+     * result before the first row is returned.
+     */
+    public void setFetchSize(int fetchSize) {
+        this.fetchSize = fetchSize;
+    }
+
+    /**
+     * Set the number of decimal places of coordinates transferred in TWKB format, or null to
+     * transfer full precision EWKB.
+     */
+    public void setTwkbPrecision(Integer twkbPrecision) {
+        this.twkbPrecision = twkbPrecision;
+    }
+
+    /**
+     * Set the local snapshot cache used to avoid reloading unchanged source tables, or null to
+     * always load from the database.
+     */
+    public void setSnapshotCache(SnapshotCache snapshotCache) {
+        this.snapshotCache = snapshotCache;
+    }
+
+    /**
+     * Set the grid that source coordinates are snapped to as they are decoded, or null to keep
+     * full precision.
+     */
+    public void setGridSnapper(GridSnapper gridSnapper) {
+        this.gridSnapper = gridSnapper;
+    }
+
+    /**
+     * Set the source of rows, or null to read the source table from the database.
+     */
+    public void setGeometrySource(GeometrySource geometrySource) {
+        this.geometrySource = geometrySource;
+    }
+
+    public GeometrySource getGeometrySource() {
+        return geometrySource;
+    }
+
     public void populateTopoCoordData(Connection conn, WKBReader reader, TopoCoordData tcd) throws Exception {
         count = 0;
         System.out.print("Load " + tableName + " ");
-        Statement stmt = conn.createStatement();
+        readRows(conn, reader, row -> {
+            tcd.addRow(row);
+            count++;
+            if ((count % 10) == 0) {
+                System.out.print("*");
+            }
+        });
+        System.out.println("*");
+    }
+
+    /**
+     * Read the rows of the source table, passing each to the sink as it is decoded. Rows come from
+     * the snapshot cache when it holds a valid snapshot of the table, otherwise they are loaded
+     * from the database and a snapshot is written for next time.
+     */
+    public void readRows(Connection conn, WKBReader reader, Consumer<Row> sink) throws Exception {
+        if (snapshotCache != null && snapshotCache.read(this, sink)) {
+            return;
+        }
+        SnapshotCache.Writer snapshot = snapshotCache == null ? null : snapshotCache.write(this);
+        TwkbReader twkbReader = createTwkbReader();
+        try {
+            fetchRows(conn, (row, bytes) -> {
+                row.mp = decode(bytes, reader, twkbReader);
+                if (row.mp.isEmpty()) {
+                    return;
+                }
+                if (snapshot != null) {
+                    snapshot.add(row);
+                }
+                sink.accept(row);
+            });
+        } catch (Exception e) {
+            if (snapshot != null) {
+                snapshot.discard();
+            }
+            throw e;
+        }
+        if (snapshot != null) {
+            snapshot.commit();
+        }
+    }
+
+    /**
+     * Fetch the rows of the source table without decoding the geometry. Each row is passed to the
+     * sink with its encoded geometry, in query order. Rows come from the geometry source if there
+     * is one, in which case the connection is not used and may be null.
+     */
+    public void fetchRows(Connection conn, RowSink sink) throws Exception {
+        if (geometrySource != null) {
+            geometrySource.fetchRows(this, sink);
+            return;
+        }
+        boolean autoCommit = conn.getAutoCommit();
+        if (fetchSize > 0) {
+            // the driver only uses a cursor outside autocommit mode
+            conn.setAutoCommit(false);
+        }
+        Statement stmt = null;
+        try {
+            stmt = conn.createStatement();
+            stmt.setFetchSize(fetchSize);
+            ResultSet rs = stmt.executeQuery(buildQuery());
+            int geomColumn = rs.getMetaData().getColumnCount();
+            while(rs.next()) {
+                Row row = createRow(rs);
+                row.table = this;
+                sink.accept(row, rs.getBytes(geomColumn));
+            }
+            rs.close();
+            if (fetchSize > 0) {
+                conn.commit();
+            }
+        } catch (Exception e) {
+            // leave the connection usable for the next caller
+            if (fetchSize > 0) {
+                conn.rollback();
+            }
+            throw e;
+        } finally {
+            if (stmt != null) {
+                stmt.close();
+            }
+            conn.setAutoCommit(autoCommit);
+        }
+    }
+
+    /**
+     * Create a geometry factory that stores coordinates packed into a double array per ring
+     * rather than as a Coordinate object per vertex, which takes about a third of the heap.
+     */
+    public static GeometryFactory createFactory(int srid) {
+        return new GeometryFactory(new PrecisionModel(), srid,
+                new PackedCoordinateSequenceFactory(PackedCoordinateSequenceFactory.DOUBLE, 2));
+    }
+
+    public WKBReader createWkbReader() {
+        return new WKBReader(createFactory(SRID));
+    }
+
+    public TwkbReader createTwkbReader() {
+        return new TwkbReader(createFactory(SRID));
+    }
+
+    /**
+     * Decode a geometry fetched by this table, snapping it to the grid if there is one. The
+     * geometry is empty if nothing is left once snapped, and the row should then be skipped. The
+     * readers are not thread safe so each thread must supply its own.
+     */
+    public MultiPolygon decode(byte[] bytes, WKBReader reader, TwkbReader twkbReader) throws Exception {
+        MultiPolygon mp;
+        if (geometrySource != null) {
+            mp = geometrySource.decode(bytes, sourceFactory);
+        } else if (twkbPrecision == null) {
+            mp = (MultiPolygon)reader.read(bytes);
+        } else {
+            mp = twkbReader.read(bytes);
+        }
+        return gridSnapper == null ? mp : gridSnapper.snap(mp);
+    }
+
+    /**
+     * Receives fetched rows and their encoded geometry.
+     */
+    public interface RowSink {
+        void accept(Row row, byte[] bytes) throws Exception;
+    }
+
+    /**
+     * Build the source query. The geometry must be the last column.
+     */
+    protected String buildQuery() {
         StringBuilder buf = new StringBuilder();
         buf.append("select ");
         buf.append(tableName);
@@ -53,61 +244,173 @@ public class AbsTable implements Table {
         buf.append(tableName);
         buf.append("_name");
         buf.append(releaseYear);
-        buf.append(", ST_AsEWKB(geom) from ");
+        buf.append(", ");
+        buf.append(geometryColumn());
+        buf.append(" from ");
         buf.append(tableName);
         buf.append(releaseYear);
         buf.append(" where geom is not null");
         if (additionalWhere != null) {
             buf.append(additionalWhere);
         }
-        ResultSet rs = stmt.executeQuery(buf.toString());
-        while(rs.next()) {
-            Row row = new Row();
-            row.table = this;
-            row.code = rs.getString(1);
-            row.name = rs.getString(2);
-            row.mp = (MultiPolygon)reader.read(rs.getBytes(3));
-            tcd.addRow(row);
-            count++;
-            if ((count % 10) == 0) {
-                System.out.print("*");
-            }
+        return buf.toString();
+    }
+
+    protected String geometryColumn() {
+        if (twkbPrecision == null) {
+            return "ST_AsEWKB(geom)";
         }
-        System.out.println("*");
-        rs.close();
-        stmt.close();
+        return "ST_AsTWKB(geom, " + twkbPrecision + ")";
+    }
+
+    /**
+     * Create a row from the non geometry columns of the source query.
+     */
+    protected Row createRow(ResultSet rs) throws SQLException {
+        Row row = newRow();
+        row.code = rs.getString(1);
+        row.name = rs.getString(2);
+        return row;
+    }
+
+    /**
+     * Create a row from the values of the source columns, for geometry sources.
+     */
+    protected Row createRow(String[] values) {
+        Row row = newRow();
+        row.code = values[0];
+        row.name = values[1];
+        return row;
+    }
+
+    /**
+     * @return the names of the non geometry columns of the source table, in source query order
+     */
+    protected String[] sourceColumns() {
+        return new String[] {tableName + "_code" + releaseYear, tableName + "_name" + releaseYear};
+    }
+
+    /**
+     * @return the name of the source table
+     */
+    protected String sourceName() {
+        return tableName + releaseYear;
     }
 
     public void saveThinnedGeometry(Connection conn, WKBWriter writer, TopoCoordData tcd) throws Exception {
-        count = 0;
+        saveThinnedGeometry(conn, writer, tcd, null);
+    }
+
+    /**
+     * Save the thinned geometry of all rows, along with the geometry of each zoom level if levels
+     * is not null.
+     */
+    public void saveThinnedGeometry(Connection conn, WKBWriter writer, TopoCoordData tcd, ZoomLevels levels)
+            throws Exception {
         System.out.print("Save " + tableName + " ");
+        Phase phase = RunReport.start("save", tableName);
+        List<Row> rowList = HilbertOrder.sortIfEnabled(tcd.tableMap.get(this));
+        List<String[]> geomList = encodeGeometry(rowList, writer, levels);
+        BulkWriter bulkWriter = new BulkWriter(conn);
+        bulkWriter.replaceGeometry(tableName + "_disp", tableName + "_code", suffixList(levels), geomList);
+        endSavePhase(phase, rowList, bulkWriter);
+    }
 
-        List<Row> rowList = tcd.tableMap.get(this);
-        StringBuilder buf = new StringBuilder();
-        buf.append("update ");
-        buf.append(tableName);
-        buf.append("_disp set geom = ? where ");
-        buf.append(tableName);
-        buf.append("_code = ?");
-        PreparedStatement ps = conn.prepareStatement(buf.toString());
+    /**
+     * Save the thinned geometry of some rows, leaving the other display rows as they are.
+     */
+    public void updateThinnedGeometry(Connection conn, WKBWriter writer, List<Row> rowList) throws Exception {
+        updateThinnedGeometry(conn, writer, rowList, null);
+    }
+
+    public void updateThinnedGeometry(Connection conn, WKBWriter writer, List<Row> rowList, ZoomLevels levels)
+            throws Exception {
+        System.out.print("Update " + tableName + " ");
+        Phase phase = RunReport.start("update", tableName);
+        List<String[]> geomList = encodeGeometry(rowList, writer, levels);
+        BulkWriter bulkWriter = new BulkWriter(conn);
+        bulkWriter.updateGeometry(tableName + "_disp", tableName + "_code", suffixList(levels), geomList);
+        endSavePhase(phase, rowList, bulkWriter);
+    }
+
+    protected static void endSavePhase(Phase phase, List<Row> rowList, BulkWriter bulkWriter) {
+        phase.rows.set(rowList.size());
+        for (Row row: rowList) {
+            if (row.mp != null) {
+                phase.verticesOut.addAndGet(row.mp.getNumPoints());
+            }
+        }
+        phase.bytes.set(bulkWriter.bytes);
+        phase.end();
+    }
+
+    protected static List<String> suffixList(ZoomLevels levels) {
+        return levels == null ? Arrays.asList("") : levels.suffixList();
+    }
+
+    /**
+     * Encode the thinned geometry of rows for the display table. GeoJSON is generated in parallel
+     * across rows, on topothin.threads threads.
+     *
+     * @return the code followed by GeoJSON and hex EWKB geometry for the default thinning and
+     * each zoom level, in row order
+     */
+    protected List<String[]> encodeGeometry(List<Row> rowList, WKBWriter writer, ZoomLevels levels) {
+        MultiPolygon[][] geoms = new MultiPolygon[rowList.size()][];
+        String[][] geoJson = new String[rowList.size()][];
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            ForEachTask.forEachIndex(pool, rowList.size(), i -> {
+                geoms[i] = levels == null ? new MultiPolygon[] {rowList.get(i).mp} : levels.geometries(rowList.get(i));
+                geoJson[i] = new String[geoms[i].length];
+                for (int j = 0; j < geoms[i].length; j++) {
+                    geoJson[i][j] = geoms[i][j] == null ? null : GeoJson.write(geoms[i][j]);
+                }
+            });
+        } finally {
+            pool.shutdown();
+        }
+        count = 0;
+        List<String[]> geomList = new ArrayList();
         for (Row row: rowList) {
-            ps.setBytes(1, writer.write(row.mp));
-            ps.setString(2, row.code);
-            ps.execute();
+            geomList.add(encode(row.code, geoms[count], geoJson[count], writer));
             count++;
             if ((count % 10) == 0) {
                 System.out.print("*");
             }
         }
         System.out.println("*");
-        ps.close();
-        Statement stmt = conn.createStatement();
-        buf.setLength(0);
-        buf.append("update ");
-        buf.append(tableName);
-        buf.append("_disp set geojson = ST_AsGeoJSON(geom,6,0) where geom is not null");
-        stmt.execute(buf.toString());
-        stmt.close();
+        return geomList;
+    }
+
+    /**
+     * @return the code followed by GeoJSON and hex EWKB geometry for each geometry, null where a
+     * geometry is null
+     */
+    public static String[] encode(String code, MultiPolygon[] geoms, String[] geoJson, WKBWriter writer) {
+        String[] result = new String[1 + 2 * geoms.length];
+        result[0] = code;
+        for (int j = 0; j < geoms.length; j++) {
+            if (geoms[j] != null) {
+                result[1 + 2 * j] = geoJson[j];
+                result[2 + 2 * j] = WKBWriter.toHex(writer.write(geoms[j]));
+            }
+        }
+        return result;
+    }
+
+    protected Row newRow() {
+        return new Row();
+    }
+
+    /**
+     * Get the state code of a row, or null if the table does not carry a state attribute.
+     */
+    protected String getStateCode(Row row) {
+        return null;
+    }
+
+    protected void setStateCode(Row row, String stateCode) {
     }
 
     @Override
@@ -9,6 +9,7 @@
 package au.id.yuill.topothin.abs;
 
 import org.locationtech.jts.geom.MultiPolygon;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
 
 /**
  * A holder class for admin polygons
@@ -19,4 +20,5 @@ import org.locationtech.jts.geom.MultiPolygon;
 public class AdminArea {
     public String code;
     public MultiPolygon geom;
+    public PreparedGeometry prepared;
 }
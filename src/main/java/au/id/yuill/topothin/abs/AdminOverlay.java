@@ -0,0 +1,115 @@
+/*
+ * Copyright (c) 2017 Peter Yuill
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package au.id.yuill.topothin.abs;
+
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
+import org.locationtech.jts.index.strtree.STRtree;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Overlay of polygons against one layer of admin areas. The admin areas are indexed by envelope
+ * and held in prepared form so that repeated predicates against the same boundaries are cheap.
+ * <br><br>
+ * The search stops as soon as an admin area is found that covers the polygon. Exact intersection
+ * areas are only computed for polygons that straddle a boundary, and the search also stops once
+ * the whole area of the polygon has been accounted for. This relies on the admin areas of a
+ * layer not overlapping each other, which holds for ABS datasets.
+ * <br><br>
+ * Once constructed an overlay may be shared by multiple threads. When apportioning is complete
+ * release frees the geometry of the admin areas, which hold most of the heap.
+ *
+ * @version 1.0
+ * @author Peter Yuill
+ */
+public class AdminOverlay {
+
+    protected static final double RESIDUAL = 1.0e-9;
+
+    protected String layer;
+    protected List<? extends AdminArea> areaList;
+    protected STRtree index = new STRtree();
+    public AtomicLong candidateCount = new AtomicLong();
+
+    public AdminOverlay(String layer, List<? extends AdminArea> areaList) {
+        this.layer = layer;
+        this.areaList = areaList;
+        for (int i = 0; i < areaList.size(); i++) {
+            AdminArea area = areaList.get(i);
+            if (area.prepared == null) {
+                area.prepared = PreparedGeometryFactory.prepare(area.geom);
+            }
+            index.insert(area.geom.getEnvelopeInternal(), Integer.valueOf(i));
+        }
+        index.build();
+    }
+
+    /**
+     * Drop the geometry and index of the admin areas once no more geometries will be apportioned.
+     * The areas themselves remain valid as share targets.
+     */
+    public void release() {
+        for (AdminArea area: areaList) {
+            area.geom = null;
+            area.prepared = null;
+        }
+        index = null;
+    }
+
+    /**
+     * Apportion the area of a geometry across the admin areas of the layer. If an admin area
+     * covers the geometry it gets the whole area without computing any intersections. Otherwise
+     * each overlapping admin area gets the fraction of the geometry area that it intersects.
+     * Shares are returned in layer order.
+     */
+    public List<AdminShare> apportion(Geometry geom) {
+        List<Integer> candidates = index.query(geom.getEnvelopeInternal());
+        Collections.sort(candidates);
+        candidateCount.addAndGet(candidates.size());
+        List<AdminShare> shareList = new ArrayList();
+        double geomArea = geom.getArea();
+        double remaining = geomArea;
+        for (Integer c: candidates) {
+            AdminArea area = areaList.get(c);
+            if (!area.prepared.intersects(geom)) {
+                continue;
+            }
+            // an area can only cover the geometry if its envelope does, which saves a full
+            // relate for geometries that straddle a boundary
+            if (area.geom.getEnvelopeInternal().covers(geom.getEnvelopeInternal()) && area.prepared.covers(geom)) {
+                shareList.clear();
+                shareList.add(new AdminShare(layer, area, 1.0));
+                return shareList;
+            }
+            double overlap = intersectionArea(geom, area.geom);
+            if (overlap > 0.0) {
+                shareList.add(new AdminShare(layer, area, overlap / geomArea));
+                remaining -= overlap;
+                if (remaining <= geomArea * RESIDUAL) {
+                    break;
+                }
+            }
+        }
+        return shareList;
+    }
+
+    public static double intersectionArea(Geometry a, Geometry b) {
+        Geometry intersection = a.intersection(b);
+        double area = 0.0;
+        int count = intersection.getNumGeometries();
+        for (int i = 0; i < count; i++) {
+            area += intersection.getGeometryN(i).getArea();
+        }
+        return area;
+    }
+}
@@ -0,0 +1,45 @@
+/*
+ * Copyright (c) 2017 Peter Yuill
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package au.id.yuill.topothin.abs;
+
+import java.util.List;
+
+/**
+ * A holder class for the fraction of a postcode (poa) area that falls within an admin area.
+ *
+ * @version 1.0
+ * @author Peter Yuill
+ */
+public class AdminShare {
+    public String layer;
+    public AdminArea area;
+    public double fraction;
+
+    public AdminShare(String layer, AdminArea area, double fraction) {
+        this.layer = layer;
+        this.area = area;
+        this.fraction = fraction;
+    }
+
+    /**
+     * Find the share of a layer with the largest fraction. Shares are in layer order so ties
+     * resolve to the first admin area.
+     *
+     * @return the dominant share or null if there are no shares for the layer
+     */
+    public static AdminShare dominant(List<AdminShare> shareList, String layer) {
+        AdminShare best = null;
+        for (AdminShare share: shareList) {
+            if (share.layer.equals(layer) && (best == null || share.fraction > best.fraction)) {
+                best = share;
+            }
+        }
+        return best;
+    }
+}
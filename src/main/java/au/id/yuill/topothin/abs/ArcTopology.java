@@ -0,0 +1,430 @@
+/*
+ * Copyright (c) 2017 Peter Yuill
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package au.id.yuill.topothin.abs;
+
+import au.id.yuill.topothin.Row;
+
+import org.locationtech.jts.algorithm.Area;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LinearRing;
+import org.locationtech.jts.geom.MultiPolygon;
+import org.locationtech.jts.geom.Polygon;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.ForkJoinPool;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+/**
+ * The shared arcs of a set of polygon rows, in the manner of TopoJSON. Rings are cut at junctions,
+ * the vertices where more than two rings meet or where two rings stop running together, and each
+ * distinct arc is kept once however many rings use it. A ring is a list of arc references, where
+ * a reference i is arc i forwards and ~i is arc i reversed.
+ * <br><br>
+ * Thinned rows carry exactly the same vertices along their shared edges, so their arcs are the
+ * edges of the thinning topology. Simplifying each arc once and rebuilding the rings from the
+ * simplified arcs keeps neighbouring rows free of gaps and overlaps along their shared edges.
+ * Arcs simplified independently can cross each other, so buildValid replaces the arcs of rows
+ * that are no longer valid with less simplified ones.
+ *
+ * @version 1.0
+ * @author Peter Yuill
+ */
+public class ArcTopology {
+
+    public List<Row> rowList;
+    public List<Coordinate[]> arcList = new ArrayList();
+    /** Arc references of each row by polygon and ring, in row order. The shell is ring 0. */
+    public List<int[][][]> geometryList = new ArrayList();
+
+    protected Set<Coordinate> junctionSet = new HashSet();
+    protected Map<ArcKey, Integer> arcMap = new HashMap();
+
+    public ArcTopology(List<Row> rowList) {
+        this.rowList = rowList;
+        findJunctions();
+        for (Row row: rowList) {
+            geometryList.add(cutRow(row.mp));
+        }
+        junctionSet = null;
+        arcMap = null;
+    }
+
+    /**
+     * Rebuild the geometry of each row from the given arcs, which must be the arcs of this
+     * topology or simplified versions of them with the same end points. Rings with fewer than
+     * four points or no area are dropped, as are polygons that lose their shell.
+     *
+     * @return geometry in row order, null where nothing is left of a row
+     */
+    public MultiPolygon[] build(List<Coordinate[]> arcs, GeometryFactory factory) {
+        MultiPolygon[] result = new MultiPolygon[rowList.size()];
+        for (int i = 0; i < result.length; i++) {
+            result[i] = build(i, arcs, factory);
+        }
+        return result;
+    }
+
+    public MultiPolygon build(int rowIndex, List<Coordinate[]> arcs, GeometryFactory factory) {
+        List<Polygon> polygonList = new ArrayList();
+        for (int[][] polygon: geometryList.get(rowIndex)) {
+            LinearRing shell = ring(polygon[0], arcs, factory);
+            if (shell == null) {
+                continue;
+            }
+            List<LinearRing> holeList = new ArrayList();
+            for (int r = 1; r < polygon.length; r++) {
+                LinearRing hole = ring(polygon[r], arcs, factory);
+                if (hole != null) {
+                    holeList.add(hole);
+                }
+            }
+            polygonList.add(factory.createPolygon(shell, holeList.toArray(new LinearRing[holeList.size()])));
+        }
+        if (polygonList.isEmpty()) {
+            return null;
+        }
+        return factory.createMultiPolygon(polygonList.toArray(new Polygon[polygonList.size()]));
+    }
+
+    /**
+     * Rebuild the geometry of each row from simplified arcs as build does, making sure every row
+     * is valid. A row that is not valid once rebuilt, such as one whose arcs cross or whose hole
+     * crosses its shell, has all of its arcs replaced by the fallback arcs, and every row using a
+     * replaced arc is rebuilt, until all rows are valid or use only fallback arcs. The fallback
+     * arcs are those of a finer level, or the arcs of this topology.
+     *
+     * @param arcs the simplified arcs, updated in place where they are replaced
+     * @return geometry in row order, null where nothing is left of a row
+     */
+    public MultiPolygon[] buildValid(List<Coordinate[]> arcs, List<Coordinate[]> fallbackArcs,
+                                     GeometryFactory factory, ForkJoinPool pool) {
+        MultiPolygon[] result = new MultiPolygon[rowList.size()];
+        boolean[] invalid = new boolean[rowList.size()];
+        List<Integer> buildList = new ArrayList();
+        for (int i = 0; i < result.length; i++) {
+            buildList.add(i);
+        }
+        List<List<Integer>> userList = null;
+        while (!buildList.isEmpty()) {
+            ForEachTask.forEach(pool, buildList, i -> {
+                result[i] = build(i, arcs, factory);
+                invalid[i] = result[i] != null && !result[i].isValid();
+            });
+            Set<Integer> replacedSet = new TreeSet();
+            for (int i: buildList) {
+                if (invalid[i]) {
+                    forEachArc(i, a -> {
+                        if (arcs.get(a) != fallbackArcs.get(a)) {
+                            arcs.set(a, fallbackArcs.get(a));
+                            replacedSet.add(a);
+                        }
+                    });
+                }
+            }
+            if (replacedSet.isEmpty()) {
+                break;
+            }
+            if (userList == null) {
+                userList = arcUsers();
+            }
+            Set<Integer> rebuildSet = new TreeSet();
+            for (int a: replacedSet) {
+                rebuildSet.addAll(userList.get(a));
+            }
+            buildList = new ArrayList(rebuildSet);
+        }
+        return result;
+    }
+
+    /**
+     * @return the indexes of the rows using each arc
+     */
+    protected List<List<Integer>> arcUsers() {
+        List<List<Integer>> userList = new ArrayList();
+        for (int a = 0; a < arcList.size(); a++) {
+            userList.add(new ArrayList());
+        }
+        for (int i = 0; i < rowList.size(); i++) {
+            int row = i;
+            forEachArc(i, a -> {
+                List<Integer> users = userList.get(a);
+                if (users.isEmpty() || users.get(users.size() - 1) != row) {
+                    users.add(row);
+                }
+            });
+        }
+        return userList;
+    }
+
+    protected void forEachArc(int rowIndex, IntConsumer action) {
+        for (int[][] polygon: geometryList.get(rowIndex)) {
+            for (int[] ring: polygon) {
+                for (int ref: ring) {
+                    action.accept(ref < 0 ? ~ref : ref);
+                }
+            }
+        }
+    }
+
+    /**
+     * Simplify an arc with Douglas-Peucker, keeping its end points. A closed arc keeps at least
+     * its first point and the point furthest from it, so it can only collapse to a line.
+     */
+    public static Coordinate[] simplify(Coordinate[] arc, double tolerance) {
+        int n = arc.length;
+        if (n <= 2) {
+            return arc;
+        }
+        boolean[] keep = new boolean[n];
+        keep[0] = true;
+        keep[n - 1] = true;
+        int[] stack = new int[2 * n];
+        int top = 0;
+        if (arc[0].equals2D(arc[n - 1])) {
+            int far = 1;
+            for (int i = 2; i < n - 1; i++) {
+                if (arc[0].distance(arc[i]) > arc[0].distance(arc[far])) {
+                    far = i;
+                }
+            }
+            keep[far] = true;
+            stack[top++] = 0;
+            stack[top++] = far;
+            stack[top++] = far;
+            stack[top++] = n - 1;
+        } else {
+            stack[top++] = 0;
+            stack[top++] = n - 1;
+        }
+        while (top > 0) {
+            int end = stack[--top];
+            int start = stack[--top];
+            double max = -1.0;
+            int index = -1;
+            for (int i = start + 1; i < end; i++) {
+                double d = segmentDistance(arc[i], arc[start], arc[end]);
+                if (d > max) {
+                    max = d;
+                    index = i;
+                }
+            }
+            if (index >= 0 && max > tolerance) {
+                keep[index] = true;
+                stack[top++] = start;
+                stack[top++] = index;
+                stack[top++] = index;
+                stack[top++] = end;
+            }
+        }
+        int count = 0;
+        for (boolean k: keep) {
+            if (k) {
+                count++;
+            }
+        }
+        Coordinate[] result = new Coordinate[count];
+        count = 0;
+        for (int i = 0; i < n; i++) {
+            if (keep[i]) {
+                result[count++] = arc[i];
+            }
+        }
+        return result;
+    }
+
+    protected static double segmentDistance(Coordinate p, Coordinate a, Coordinate b) {
+        double dx = b.x - a.x;
+        double dy = b.y - a.y;
+        double len2 = dx * dx + dy * dy;
+        if (len2 == 0.0) {
+            return p.distance(a);
+        }
+        double t = ((p.x - a.x) * dx + (p.y - a.y) * dy) / len2;
+        t = Math.max(0.0, Math.min(1.0, t));
+        double x = a.x + t * dx - p.x;
+        double y = a.y + t * dy - p.y;
+        return Math.sqrt(x * x + y * y);
+    }
+
+    protected LinearRing ring(int[] refs, List<Coordinate[]> arcs, GeometryFactory factory) {
+        List<Coordinate> coordList = new ArrayList();
+        for (int ref: refs) {
+            Coordinate[] arc = arcs.get(ref < 0 ? ~ref : ref);
+            for (int i = 0; i < arc.length; i++) {
+                Coordinate c = arc[ref < 0 ? arc.length - 1 - i : i];
+                if (coordList.isEmpty() || !coordList.get(coordList.size() - 1).equals2D(c)) {
+                    coordList.add(c);
+                }
+            }
+        }
+        if (coordList.size() < 4) {
+            return null;
+        }
+        Coordinate[] coords = coordList.toArray(new Coordinate[coordList.size()]);
+        if (Area.ofRing(coords) == 0.0) {
+            return null;
+        }
+        return factory.createLinearRing(coords);
+    }
+
+    /**
+     * Mark the vertices where rings meet or part. A vertex is a junction when it is seen with a
+     * different pair of neighbours from the first time it was seen.
+     */
+    protected void findJunctions() {
+        Map<Coordinate, Coordinate[]> neighbourMap = new HashMap();
+        for (Row row: rowList) {
+            forEachRing(row.mp, coords -> {
+                int n = coords.length - 1;
+                for (int i = 0; i < n; i++) {
+                    Coordinate prev = coords[i == 0 ? n - 1 : i - 1];
+                    Coordinate next = coords[i + 1];
+                    Coordinate[] seen = neighbourMap.putIfAbsent(coords[i], new Coordinate[] {prev, next});
+                    if (seen != null && !junctionSet.contains(coords[i]) &&
+                            !(seen[0].equals2D(prev) && seen[1].equals2D(next)) &&
+                            !(seen[0].equals2D(next) && seen[1].equals2D(prev))) {
+                        junctionSet.add(coords[i]);
+                    }
+                }
+            });
+        }
+    }
+
+    protected int[][][] cutRow(MultiPolygon mp) {
+        int[][][] result = new int[mp.getNumGeometries()][][];
+        for (int p = 0; p < result.length; p++) {
+            Polygon polygon = (Polygon)mp.getGeometryN(p);
+            result[p] = new int[polygon.getNumInteriorRing() + 1][];
+            result[p][0] = cutRing(polygon.getExteriorRing().getCoordinates());
+            for (int r = 0; r < polygon.getNumInteriorRing(); r++) {
+                result[p][r + 1] = cutRing(polygon.getInteriorRingN(r).getCoordinates());
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Cut a closed ring at its junctions into arc references. A ring with no junctions is a
+     * single closed arc starting at its least vertex.
+     */
+    protected int[] cutRing(Coordinate[] coords) {
+        int n = coords.length - 1;
+        int first = -1;
+        for (int i = 0; i < n && first < 0; i++) {
+            if (junctionSet.contains(coords[i])) {
+                first = i;
+            }
+        }
+        if (first < 0) {
+            first = 0;
+            for (int i = 1; i < n; i++) {
+                if (coords[i].compareTo(coords[first]) < 0) {
+                    first = i;
+                }
+            }
+            Coordinate[] arc = new Coordinate[n + 1];
+            for (int i = 0; i <= n; i++) {
+                arc[i] = coords[(first + i) % n];
+            }
+            return new int[] {arcRef(arc)};
+        }
+        List<Integer> refList = new ArrayList();
+        int start = 0;
+        for (int i = 1; i <= n; i++) {
+            if (i == n || junctionSet.contains(coords[(first + i) % n])) {
+                Coordinate[] arc = new Coordinate[i - start + 1];
+                for (int j = start; j <= i; j++) {
+                    arc[j - start] = coords[(first + j) % n];
+                }
+                refList.add(arcRef(arc));
+                start = i;
+            }
+        }
+        int[] refs = new int[refList.size()];
+        for (int i = 0; i < refs.length; i++) {
+            refs[i] = refList.get(i);
+        }
+        return refs;
+    }
+
+    /**
+     * Find or add an arc, matching it in either direction.
+     */
+    protected int arcRef(Coordinate[] arc) {
+        boolean reversed = isReversed(arc);
+        if (reversed) {
+            Coordinate[] forward = new Coordinate[arc.length];
+            for (int i = 0; i < arc.length; i++) {
+                forward[i] = arc[arc.length - 1 - i];
+            }
+            arc = forward;
+        }
+        ArcKey key = new ArcKey(arc);
+        Integer index = arcMap.get(key);
+        if (index == null) {
+            index = arcList.size();
+            arcList.add(arc);
+            arcMap.put(key, index);
+        }
+        return reversed ? ~index : index;
+    }
+
+    /**
+     * An arc is stored in the direction that starts at its lesser end, or for a closed arc the
+     * direction whose second point is the lesser.
+     */
+    protected static boolean isReversed(Coordinate[] arc) {
+        int n = arc.length - 1;
+        int c = arc[0].compareTo(arc[n]);
+        if (c == 0) {
+            c = arc[1].compareTo(arc[n - 1]);
+        }
+        return c > 0;
+    }
+
+    protected static void forEachRing(MultiPolygon mp, Consumer<Coordinate[]> action) {
+        for (int p = 0; p < mp.getNumGeometries(); p++) {
+            Polygon polygon = (Polygon)mp.getGeometryN(p);
+            action.accept(polygon.getExteriorRing().getCoordinates());
+            for (int r = 0; r < polygon.getNumInteriorRing(); r++) {
+                action.accept(polygon.getInteriorRingN(r).getCoordinates());
+            }
+        }
+    }
+
+    protected static class ArcKey {
+
+        protected Coordinate[] coords;
+        protected int hash;
+
+        protected ArcKey(Coordinate[] coords) {
+            this.coords = coords;
+            hash = Arrays.hashCode(coords);
+        }
+
+        @Override
+        public int hashCode() {
+            return hash;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof ArcKey && Arrays.equals(coords, ((ArcKey)o).coords);
+        }
+    }
+}
@@ -0,0 +1,267 @@
+/*
+ * Copyright (c) 2017 Peter Yuill
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package au.id.yuill.topothin.abs;
+
+import au.id.yuill.topothin.*;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A Table described by its column names, for ASGS layers such as Statistical Area Level 1 (sa1)
+ * and Mesh Blocks (mb) whose columns do not follow the &lt;table&gt;_code and &lt;table&gt;_name
+ * pattern of AbsTable. Column names are given without the release year, which is appended as
+ * for the other tables.
+ * <br><br>
+ * Every row carries the state it belongs to, from the state column when the layer has one,
+ * otherwise from the LGA containing a point on the surface of the row, or failing that the LGA
+ * nearest to it, so every row belongs to a state. A table can be narrowed to one state partition,
+ * which also loads the rows of other states that touch a row of the partition in any of the
+ * layers being thinned, so the shared edges along the state border are thinned the same way on
+ * both sides, including the edges a layer shares with other layers.
+ *
+ * @version 1.0
+ * @author Peter Yuill
+ */
+public class AsgsTable extends AbsTable {
+
+    protected String sourceName;
+    protected String codeColumn;
+    protected String nameColumn;
+    protected String stateColumn;
+    protected String partition;
+
+    /**
+     * @param tableName the layer name used for the display table, e.g. sa1 for sa1_disp
+     * @param sourceName the source table name without the release year
+     * @param nameColumn the name column, or null to use the code as the name
+     * @param stateColumn the state code column, or null to locate rows in the LGA layer
+     */
+    public AsgsTable(String releaseYear, String tableName, String sourceName, String codeColumn, String nameColumn,
+                     String stateColumn, String additionalWhere) {
+        super(releaseYear, tableName, additionalWhere);
+        this.sourceName = sourceName;
+        this.codeColumn = codeColumn;
+        this.nameColumn = nameColumn;
+        this.stateColumn = stateColumn;
+    }
+
+    /**
+     * Describe one of the known layers poa, lga, sed, ced, sa1 or mb.
+     */
+    public static AsgsTable forLayer(String layer, String releaseYear) {
+        switch (layer) {
+            case "poa":
+            case "sed":
+            case "ced":
+                return new AsgsTable(releaseYear, layer, layer, layer + "_code", layer + "_name", null, null);
+            case "lga":
+                return new AsgsTable(releaseYear, layer, layer, "lga_code", "lga_name", "ste_code", null);
+            case "sa1":
+                return new AsgsTable(releaseYear, layer, layer, "sa1_main", "sa1_7dig", "ste_code", null);
+            case "mb":
+                return new AsgsTable(releaseYear, layer, layer, "mb_code", null, "ste_code", null);
+            default:
+                throw new IllegalArgumentException("Unknown layer " + layer);
+        }
+    }
+
+    /**
+     * Get the state codes of the partitions, from the LGA layer of the release.
+     */
+    public static List<String> partitionCodes(Connection conn, String releaseYear) throws SQLException {
+        List<String> codeList = new ArrayList();
+        Statement stmt = conn.createStatement();
+        ResultSet rs = stmt.executeQuery("select distinct ste_code" + releaseYear + " from lga" + releaseYear +
+                " where geom is not null order by 1");
+        while (rs.next()) {
+            codeList.add(rs.getString(1));
+        }
+        rs.close();
+        stmt.close();
+        return codeList;
+    }
+
+    /**
+     * Narrow this table to the rows of one state and the rows of other states that touch a row of
+     * that state in any of the layers.
+     *
+     * @param layerList the layers being thinned together, including this one
+     */
+    public AsgsTable partition(String stateCode, List<AsgsTable> layerList) {
+        StringBuilder buf = new StringBuilder();
+        if (additionalWhere != null) {
+            buf.append(additionalWhere);
+        }
+        buf.append(" and (");
+        buf.append(stateExpression("t"));
+        buf.append(" = '");
+        buf.append(stateCode);
+        buf.append("'");
+        for (AsgsTable layer: layerList) {
+            buf.append(" or exists (select 1 from ");
+            buf.append(layer.sourceName);
+            buf.append(layer.releaseYear);
+            buf.append(" o where o.geom && t.geom and ");
+            buf.append(layer.stateExpression("o"));
+            buf.append(" = '");
+            buf.append(stateCode);
+            buf.append("' and ST_Intersects(o.geom, t.geom))");
+        }
+        buf.append(")");
+        AsgsTable table = new AsgsTable(releaseYear, tableName, sourceName, codeColumn, nameColumn, stateColumn,
+                buf.toString());
+        table.partition = stateCode;
+        table.fetchSize = fetchSize;
+        table.twkbPrecision = twkbPrecision;
+        table.snapshotCache = snapshotCache;
+        table.gridSnapper = gridSnapper;
+        return table;
+    }
+
+    /**
+     * @return true if the row belongs to the partition of this table rather than a neighbouring one
+     */
+    public boolean isOwned(Row row) {
+        return partition == null || partition.equals(getStateCode(row));
+    }
+
+    public String getPartition() {
+        return partition;
+    }
+
+    @Override
+    protected String buildQuery() {
+        StringBuilder buf = new StringBuilder();
+        buf.append("select t.");
+        buf.append(codeColumn);
+        buf.append(releaseYear);
+        buf.append(", t.");
+        buf.append(nameColumn == null ? codeColumn : nameColumn);
+        buf.append(releaseYear);
+        buf.append(", ");
+        buf.append(stateExpression("t"));
+        buf.append(", ");
+        buf.append(geometryColumn());
+        buf.append(" from ");
+        buf.append(sourceName);
+        buf.append(releaseYear);
+        buf.append(" t where t.geom is not null");
+        if (additionalWhere != null) {
+            buf.append(additionalWhere);
+        }
+        return buf.toString();
+    }
+
+    /**
+     * The state code of a row of the source table with the given alias. Rows of layers with no
+     * state column take the state of the LGA containing a point on their surface, or of the
+     * nearest LGA if no LGA contains it.
+     */
+    protected String stateExpression(String alias) {
+        if (stateColumn != null) {
+            return alias + "." + stateColumn + releaseYear;
+        }
+        return "coalesce(" + containingStateExpression(alias) + ", (select l.ste_code" + releaseYear + " from lga" +
+                releaseYear + " l where l.geom is not null order by l.geom <-> ST_PointOnSurface(" + alias +
+                ".geom) limit 1))";
+    }
+
+    protected String containingStateExpression(String alias) {
+        return "(select l.ste_code" + releaseYear + " from lga" + releaseYear + " l where l.geom && ST_PointOnSurface(" +
+                alias + ".geom) and ST_Intersects(l.geom, ST_PointOnSurface(" + alias + ".geom)) limit 1)";
+    }
+
+    /**
+     * Get the codes of the rows with no LGA containing a point on their surface, which are given
+     * the state of the nearest LGA. Layers with a state column have none.
+     */
+    public List<String> uncontainedCodes(Connection conn) throws SQLException {
+        List<String> codeList = new ArrayList();
+        if (stateColumn != null) {
+            return codeList;
+        }
+        Statement stmt = conn.createStatement();
+        ResultSet rs = stmt.executeQuery("select t." + codeColumn + releaseYear + " from " + sourceName + releaseYear +
+                " t where t.geom is not null and " + containingStateExpression("t") + " is null order by 1");
+        while (rs.next()) {
+            codeList.add(rs.getString(1));
+        }
+        rs.close();
+        stmt.close();
+        return codeList;
+    }
+
+    /**
+     * Create the display table for the layer if it does not exist, and add display rows for
+     * source rows that do not have one.
+     */
+    public void createDisplayTable(Connection conn) throws SQLException {
+        Statement stmt = conn.createStatement();
+        stmt.execute("create table if not exists " + tableName + "_disp (" + tableName +
+                "_code varchar primary key, name varchar, lon double precision, lat double precision, " +
+                "geojson varchar, geom GEOMETRY(MULTIPOLYGON," + SRID + "))");
+        stmt.execute("insert into " + tableName + "_disp (" + tableName + "_code, name, lon, lat) " +
+                "select t." + codeColumn + releaseYear + ", t." + (nameColumn == null ? codeColumn : nameColumn) +
+                releaseYear + ", ST_X(ST_Centroid(t.geom)), ST_Y(ST_Centroid(t.geom)) from " + sourceName +
+                releaseYear + " t where t.geom is not null and not exists (select 1 from " + tableName +
+                "_disp d where d." + tableName + "_code = t." + codeColumn + releaseYear + ")");
+        stmt.close();
+    }
+
+    @Override
+    protected Row createRow(ResultSet rs) throws SQLException {
+        Row row = super.createRow(rs);
+        setStateCode(row, rs.getString(3));
+        return row;
+    }
+
+    /**
+     * A geometry source can only supply the state of a row from a state column.
+     */
+    @Override
+    protected Row createRow(String[] values) {
+        Row row = super.createRow(values);
+        setStateCode(row, values[2]);
+        return row;
+    }
+
+    @Override
+    protected String[] sourceColumns() {
+        if (stateColumn == null) {
+            throw new IllegalStateException(tableName + " has no state column, its rows can only be read from the database");
+        }
+        return new String[] {codeColumn + releaseYear, (nameColumn == null ? codeColumn : nameColumn) + releaseYear,
+                stateColumn + releaseYear};
+    }
+
+    @Override
+    protected String sourceName() {
+        return sourceName + releaseYear;
+    }
+
+    @Override
+    protected Row newRow() {
+        return new LgaRow();
+    }
+
+    @Override
+    protected String getStateCode(Row row) {
+        return ((LgaRow)row).stateCode;
+    }
+
+    @Override
+    protected void setStateCode(Row row, String stateCode) {
+        ((LgaRow)row).stateCode = stateCode;
+    }
+}
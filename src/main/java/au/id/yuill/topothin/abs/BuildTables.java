@@ -8,12 +8,13 @@
  */
 package au.id.yuill.topothin.abs;
 
-import org.locationtech.jts.geom.Geometry;
-import org.locationtech.jts.geom.MultiPolygon;
-import org.locationtech.jts.io.WKBReader;
-
 import java.sql.*;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
 
 /**
  * A class to build display tables corresponding to Australian Statistical Geography Standard
@@ -39,9 +40,15 @@ public class BuildTables {
     public static String dbUrl;
     public static String dbUser;
     public static String dbPass;
+    public static int threads = Integer.getInteger("topothin.threads", Runtime.getRuntime().availableProcessors());
     public static Connection conn;
     public static Statement stmt;
 
+    public static final String POSTCODE_COLUMNS = "(poa_code varchar(4) primary key, lga_code varchar(5), " +
+            "ste_code varchar(1), sed_code varchar(5), ced_code varchar(3))";
+    public static final String CONCORDANCE_COLUMNS = "(poa_code varchar(4), layer varchar(3), " +
+            "area_code varchar(5), fraction double precision, primary key (poa_code, layer, area_code))";
+
     public static void main(String[] args) throws Exception {
         if (args.length == 7) {
             poaReleaseYear = args[0];
@@ -53,11 +60,14 @@ public class BuildTables {
             dbPass = args[6];
         } else {
             System.out.println("usage: BuildTables poaReleaseYear lgaReleaseYear sedReleaseYear cedReleaseYear dbUrl dbUser dbPassword");
+            System.out.println("options: -Dtopothin.threads=n (default available processors)");
+            System.out.println("         -Dtopothin.report=file (write a JSON report of run phases)");
             System.exit(0);
         }
         Class.forName("org.postgresql.Driver");
         conn = DriverManager.getConnection(dbUrl, dbUser, dbPass);
         stmt = conn.createStatement();
+        RunReport.get().setProgram("BuildTables");
 
         createAdminTable("poa", 4);
         createAdminTable("lga", 5);
@@ -65,27 +75,35 @@ public class BuildTables {
         createAdminTable("ced", 3);
         createAdminTable("ste", 1);
         createPostcodeTable();
+
+        Phase phase = RunReport.start("populateDisplay", null);
         populateState();
         populateAdminTable("poa", poaReleaseYear);
         populateAdminTable("lga", lgaReleaseYear);
         populateAdminTable("sed", sedReleaseYear);
         populateAdminTable("ced", cedReleaseYear);
+        phase.end();
 
         populateRelationships();
+        RunReport.get().writeIfRequested();
     }
 
     public static void createAdminTable(String adminCode, int codeSize) throws Exception {
         stmt.execute("drop table if exists " + adminCode + "_disp");
-        stmt.execute("create table " + adminCode + "_disp (" + adminCode +
-                "_code varchar(" + codeSize + ") primary key, name varchar(50), " +
+        stmt.execute("create table " + adminCode + "_disp " + adminTableColumns(adminCode, codeSize));
+    }
+
+    public static String adminTableColumns(String adminCode, int codeSize) {
+        return "(" + adminCode + "_code varchar(" + codeSize + ") primary key, name varchar(50), " +
                 "lon double precision, lat double precision, geojson varchar, " +
-                "geom GEOMETRY(MULTIPOLYGON,4283))");
+                "geom GEOMETRY(MULTIPOLYGON,4283))";
     }
 
     public static void createPostcodeTable() throws Exception {
         stmt.execute("drop table if exists postcode");
-        stmt.execute("create table postcode (poa_code varchar(4) primary key, lga_code varchar(5), " +
-                "ste_code varchar(1), sed_code varchar(5), ced_code varchar(3))");
+        stmt.execute("create table postcode " + POSTCODE_COLUMNS);
+        stmt.execute("drop table if exists postcode_concordance");
+        stmt.execute("create table postcode_concordance " + CONCORDANCE_COLUMNS);
     }
 
     public static void populateState() throws Exception {
@@ -104,148 +122,170 @@ public class BuildTables {
     }
 
     public static void populateRelationships() throws Exception {
-        WKBReader reader = new WKBReader();
         ArrayList<Poa> poaList = new ArrayList();
         ArrayList<Lga> lgaList = new ArrayList();
         ArrayList<AdminArea> sedList = new ArrayList();
         ArrayList<AdminArea> cedList = new ArrayList();
-        ResultSet rs = stmt.executeQuery("select poa_code" + poaReleaseYear + ", ST_AsEWKB(geom) from poa" +
-                poaReleaseYear + " where geom is not null");
-        while(rs.next()) {
-            Poa poa = new Poa();
-            poa.poaCode = rs.getString(1);
-            poa.geom = (MultiPolygon)reader.read(rs.getBytes(2));
-            poaList.add(poa);
-        }
-        rs.close();
-        rs = stmt.executeQuery("select lga_code" + lgaReleaseYear + ", ste_code" + lgaReleaseYear +
-                ", ST_AsEWKB(geom) from lga" + lgaReleaseYear + " where geom is not null");
-        while(rs.next()) {
-            Lga lga = new Lga();
-            lga.lgaCode = rs.getString(1);
-            lga.steCode = rs.getString(2);
-            lga.geom = (MultiPolygon)reader.read(rs.getBytes(3));
-            lgaList.add(lga);
-        }
-        rs.close();
-        long start = System.currentTimeMillis();
-        for (Poa poa: poaList) {
-            poa.area = 0.0;
-            for (Lga lga: lgaList) {
-                if (poa.geom.coveredBy(lga.geom)) {
-                    poa.lgaCode = lga.lgaCode;
-                    poa.steCode = lga.steCode;
-                    poa.area = Double.MAX_VALUE;
-                    continue;
-                } else if (poa.geom.overlaps(lga.geom)) {
-                    Geometry intersection = poa.geom.intersection(lga.geom);
-                    if (!intersection.isEmpty()) {
-                        int count = intersection.getNumGeometries();
-                        double area = 0.0;
-                        for (int i = 0; i < count; i++) {
-                            Geometry n = intersection.getGeometryN(i);
-                            area += n.getArea();
-                        }
-                        if (area > poa.area) {
-                            poa.area = area;
-                            poa.lgaCode = lga.lgaCode;
-                            poa.steCode = lga.steCode;
-                        }
-                    }
+        AbsTable poaTable = new AbsTable(poaReleaseYear, "poa", null);
+        AbsTable lgaTable = new LgaTable(lgaReleaseYear, null);
+        AbsTable sedTable = new AbsTable(sedReleaseYear, "sed", null);
+        AbsTable cedTable = new AbsTable(cedReleaseYear, "ced", null);
+        ConcurrentLoader loader = new ConcurrentLoader(dbUrl, dbUser, dbPass, threads);
+        loader.load(Arrays.asList(poaTable, lgaTable, sedTable, cedTable), row -> {
+            if (row.table == poaTable) {
+                Poa poa = new Poa();
+                poa.poaCode = row.code;
+                poa.geom = row.mp;
+                poaList.add(poa);
+            } else if (row.table == lgaTable) {
+                Lga lga = new Lga();
+                lga.code = row.code;
+                lga.steCode = ((LgaRow)row).stateCode;
+                lga.geom = row.mp;
+                lgaList.add(lga);
+            } else {
+                AdminArea area = new AdminArea();
+                area.code = row.code;
+                area.geom = row.mp;
+                if (row.table == sedTable) {
+                    sedList.add(area);
+                } else {
+                    cedList.add(area);
                 }
             }
-            if (poa.lgaCode == null) {
-                System.out.println(poa.poaCode + " null LGA");
+        });
+
+        attribute(poaList, lgaList, sedList, cedList);
+
+        Phase phase = RunReport.start("save", "postcode");
+        BulkWriter bulkWriter = new BulkWriter(conn);
+        phase.rows.set(copyPostcodes(bulkWriter, poaList));
+        phase.bytes.set(bulkWriter.bytes);
+        bulkWriter.swap("postcode", "postcode_concordance");
+        phase.end();
+        conn.close();
+    }
+
+    /**
+     * Apportion each postcode across the LGA, SED, CED and state layers and set its dominant
+     * codes. The geometry of all of the areas is released when done.
+     */
+    public static void attribute(List<Poa> poaList, List<Lga> lgaList, List<AdminArea> sedList,
+                                 List<AdminArea> cedList) {
+        long start = System.currentTimeMillis();
+        Phase phase = RunReport.start("prepareOverlays", null);
+        List<AdminOverlay> overlayList = new ArrayList();
+        overlayList.add(new AdminOverlay("lga", lgaList));
+        overlayList.add(new AdminOverlay("sed", sedList));
+        overlayList.add(new AdminOverlay("ced", cedList));
+        Map<String, AdminArea> stateMap = new LinkedHashMap();
+        for (Lga lga: lgaList) {
+            if (!stateMap.containsKey(lga.steCode)) {
+                AdminArea state = new AdminArea();
+                state.code = lga.steCode;
+                stateMap.put(lga.steCode, state);
             }
         }
-        System.out.println("Time: " + (System.currentTimeMillis() - start));
-        rs = stmt.executeQuery("select sed_code" + sedReleaseYear + ", ST_AsEWKB(geom) from sed" +
-                sedReleaseYear + " where geom is not null");
-        while(rs.next()) {
-            AdminArea sed = new AdminArea();
-            sed.code = rs.getString(1);
-            sed.geom = (MultiPolygon)reader.read(rs.getBytes(2));
-            sedList.add(sed);
-        }
-        rs.close();
+        phase.end();
+        System.out.println("Prepare: " + (System.currentTimeMillis() - start));
+
         start = System.currentTimeMillis();
+        phase = RunReport.start("apportion", "poa");
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        ForEachTask.forEach(pool, poaList, poa -> {
+            poa.shareList = new ArrayList();
+            for (AdminOverlay overlay: overlayList) {
+                poa.shareList.addAll(overlay.apportion(poa.geom));
+            }
+            poa.shareList.addAll(stateShares(poa.shareList, stateMap));
+            AdminShare lga = AdminShare.dominant(poa.shareList, "lga");
+            if (lga != null) {
+                poa.lgaCode = lga.area.code;
+                poa.steCode = ((Lga)lga.area).steCode;
+            }
+            AdminShare sed = AdminShare.dominant(poa.shareList, "sed");
+            if (sed != null) {
+                poa.sedCode = sed.area.code;
+            }
+            AdminShare ced = AdminShare.dominant(poa.shareList, "ced");
+            if (ced != null) {
+                poa.cedCode = ced.area.code;
+            }
+        });
+        pool.shutdown();
+        phase.rows.set(poaList.size());
         for (Poa poa: poaList) {
-            poa.area = 0.0;
-            for (AdminArea sed: sedList) {
-                if (poa.geom.coveredBy(sed.geom)) {
-                    poa.sedCode = sed.code;
-                    poa.area = Double.MAX_VALUE;
-                    continue;
-                } else if (poa.geom.overlaps(sed.geom)) {
-                    Geometry intersection = poa.geom.intersection(sed.geom);
-                    if (!intersection.isEmpty()) {
-                        int count = intersection.getNumGeometries();
-                        double area = 0.0;
-                        for (int i = 0; i < count; i++) {
-                            Geometry n = intersection.getGeometryN(i);
-                            area += n.getArea();
-                        }
-                        if (area > poa.area) {
-                            poa.area = area;
-                            poa.sedCode = sed.code;
-                        }
-                    }
-                }
+            phase.verticesIn.addAndGet(poa.geom.getNumPoints());
+        }
+        for (AdminOverlay overlay: overlayList) {
+            phase.putExtra(overlay.layer + "Candidates", overlay.candidateCount.get());
+        }
+        phase.end();
+        for (Poa poa: poaList) {
+            poa.geom = null;
+        }
+        for (AdminOverlay overlay: overlayList) {
+            overlay.release();
+        }
+        for (Poa poa: poaList) {
+            if (poa.lgaCode == null) {
+                System.out.println(poa.poaCode + " null LGA");
             }
             if (poa.sedCode == null) {
                 System.out.println(poa.poaCode + " null State Electoral Division");
             }
+            if (poa.cedCode == null) {
+                System.out.println(poa.poaCode + " null Commonwealth Electoral Division");
+            }
         }
         System.out.println("Time: " + (System.currentTimeMillis() - start));
-        rs = stmt.executeQuery("select ced_code" + cedReleaseYear + ", ST_AsEWKB(geom) from ced" +
-                cedReleaseYear + " where geom is not null");
-        while(rs.next()) {
-            AdminArea ced = new AdminArea();
-            ced.code = rs.getString(1);
-            ced.geom = (MultiPolygon)reader.read(rs.getBytes(2));
-            cedList.add(ced);
+        for (AdminOverlay overlay: overlayList) {
+            System.out.println("Candidate pairs " + overlay.layer + ": " + overlay.candidateCount.get() + " of " +
+                    ((long)poaList.size() * overlay.areaList.size()));
         }
-        rs.close();
-        start = System.currentTimeMillis();
-        for (Poa poa: poaList) {
-            poa.area = 0.0;
-            for (AdminArea ced: cedList) {
-                if (poa.geom.coveredBy(ced.geom)) {
-                    poa.cedCode = ced.code;
-                    poa.area = Double.MAX_VALUE;
-                    continue;
-                } else if (poa.geom.overlaps(ced.geom)) {
-                    Geometry intersection = poa.geom.intersection(ced.geom);
-                    if (!intersection.isEmpty()) {
-                        int count = intersection.getNumGeometries();
-                        double area = 0.0;
-                        for (int i = 0; i < count; i++) {
-                            Geometry n = intersection.getGeometryN(i);
-                            area += n.getArea();
-                        }
-                        if (area > poa.area) {
-                            poa.area = area;
-                            poa.cedCode = ced.code;
+    }
+
+    /**
+     * Copy attributed postcodes into staging tables for postcode and postcode_concordance, ready to
+     * be swapped in. The bytes of both copies are added to those of the writer, so the save
+     * postcode phase reports the postcode and concordance rows together.
+     *
+     * @return the number of rows copied to both tables
+     */
+    public static long copyPostcodes(BulkWriter bulkWriter, List<Poa> poaList) throws Exception {
+        long rows = bulkWriter.copy(bulkWriter.createStaging("postcode"), "poa_code, lga_code, ste_code, sed_code, ced_code",
+                copy -> {
+                    for (Poa poa: poaList) {
+                        copy.row(poa.poaCode, poa.lgaCode, poa.steCode, poa.sedCode, poa.cedCode);
+                    }
+                }).rows;
+        rows += bulkWriter.copy(bulkWriter.createStaging("postcode_concordance"), "poa_code, layer, area_code, fraction",
+                copy -> {
+                    for (Poa poa: poaList) {
+                        for (AdminShare share: poa.shareList) {
+                            copy.row(poa.poaCode, share.layer, share.area.code, share.fraction);
                         }
                     }
+                }).rows;
+        return rows;
+    }
+
+    /**
+     * Sum the LGA shares of a postcode by state.
+     */
+    private static List<AdminShare> stateShares(List<AdminShare> shareList, Map<String, AdminArea> stateMap) {
+        Map<String, AdminShare> steShareMap = new LinkedHashMap();
+        for (AdminShare share: shareList) {
+            if (share.layer.equals("lga")) {
+                String steCode = ((Lga)share.area).steCode;
+                AdminShare steShare = steShareMap.get(steCode);
+                if (steShare == null) {
+                    steShare = new AdminShare("ste", stateMap.get(steCode), 0.0);
+                    steShareMap.put(steCode, steShare);
                 }
-            }
-            if (poa.cedCode == null) {
-                System.out.println(poa.poaCode + " null Commonwealth Electoral Division");
+                steShare.fraction += share.fraction;
             }
         }
-        System.out.println("Time: " + (System.currentTimeMillis() - start));
-        PreparedStatement ps = conn.prepareStatement("insert into postcode(poa_code, lga_code, ste_code, sed_code, ced_code)" +
-                " values (?,?,?,?,?)");
-        for (Poa poa: poaList) {
-            ps.setString(1, poa.poaCode);
-            ps.setString(2, poa.lgaCode);
-            ps.setString(3, poa.steCode);
-            ps.setString(4, poa.sedCode);
-            ps.setString(5, poa.cedCode);
-            ps.execute();
-        }
-        ps.close();
-        conn.close();
+        return new ArrayList(steShareMap.values());
     }
 }
@@ -0,0 +1,359 @@
+/*
+ * Copyright (c) 2017 Peter Yuill
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package au.id.yuill.topothin.abs;
+
+import org.postgresql.PGConnection;
+import org.postgresql.copy.CopyIn;
+import org.postgresql.copy.CopyManager;
+
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Bulk writer for display tables. Rows are streamed with the PostgreSQL COPY protocol into an
+ * unlogged staging table with the same columns as the target table. When the staging table is
+ * complete the rows of the target are deleted and it is filled from the staging table in a single
+ * transaction. Readers are not blocked and see either the old rows or the new ones, whatever
+ * their isolation level, and never a partly updated table. The target table itself is kept, so
+ * its grants, constraints, indexes, triggers, comments and any views on it survive.
+ * <br><br>
+ * A COPY that fails part way is cancelled, so the connection can still be used.
+ *
+ * @version 1.0
+ * @author Peter Yuill
+ */
+public class BulkWriter {
+
+    protected static final int BUFFER_SIZE = 65536;
+
+    protected Connection conn;
+    protected CopyManager copyManager;
+
+    /**
+     * The number of bytes copied to the server by the geometry and copy methods, for run reports.
+     */
+    public long bytes;
+
+    public BulkWriter(Connection conn) throws SQLException {
+        this.conn = conn;
+        this.copyManager = conn.unwrap(PGConnection.class).getCopyAPI();
+    }
+
+    public static String stagingName(String table) {
+        return table + "_stage";
+    }
+
+    /**
+     * Create an empty unlogged staging table with the columns and defaults of the target table,
+     * replacing any staging table left by an earlier failed run. Indexes and constraints are
+     * checked when the rows are swapped into the target, so the staging table has none.
+     *
+     * @return the name of the staging table
+     */
+    public String createStaging(String table) throws SQLException {
+        String staging = stagingName(table);
+        Statement stmt = conn.createStatement();
+        stmt.execute("drop table if exists " + staging);
+        stmt.execute("create unlogged table " + staging + " (like " + table + " including defaults)");
+        stmt.close();
+        return staging;
+    }
+
+    /**
+     * Replace the rows of the targets with those of their staging tables and drop the staging
+     * tables. All of the tables are replaced in one transaction. Rows are deleted rather than
+     * truncated, as truncate is not MVCC safe and would lock out readers until the commit.
+     */
+    public void swap(String... tables) throws SQLException {
+        Statement stmt = conn.createStatement();
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try {
+            for (String table: tables) {
+                stmt.execute("delete from " + table);
+                stmt.execute("insert into " + table + " select * from " + stagingName(table));
+                stmt.execute("drop table " + stagingName(table));
+            }
+            conn.commit();
+        } catch (SQLException e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(autoCommit);
+            stmt.close();
+        }
+    }
+
+    /**
+     * Replace the geometry columns of a display table. The codes, GeoJSON and hex EWKB geometries
+     * are copied into a temporary table and joined with the existing display rows to fill a
+     * staging table, which is then swapped in. Rows with no matching code get null geometry.
+     *
+     * @param rowList triples of code, GeoJSON and hex EWKB geometry
+     */
+    public void replaceGeometry(String table, String codeColumn, List<String[]> rowList) throws SQLException {
+        replaceGeometry(table, codeColumn, Arrays.asList(""), rowList);
+    }
+
+    /**
+     * Replace several sets of geometry columns of a display table, such as geojson and geom along
+     * with geojson_z8 and geom_z8. Geometry columns of the table that are not listed are left null.
+     *
+     * @param suffixList the suffix of each geojson and geom column pair
+     * @param rowList the code followed by GeoJSON and hex EWKB geometry for each suffix
+     */
+    public void replaceGeometry(String table, String codeColumn, List<String> suffixList, List<String[]> rowList)
+            throws SQLException {
+        String temp = copyGeometry(table, suffixList, rowList);
+        replaceFromTemp(table, codeColumn, suffixList, temp);
+    }
+
+    /**
+     * Replace several sets of geometry columns of a display table with rows streamed by a source,
+     * for tables too large to hold encoded in memory.
+     */
+    public void replaceGeometry(String table, String codeColumn, List<String> suffixList, RowSource source)
+            throws Exception {
+        String temp = createGeometryTemp(table, suffixList);
+        copy(temp, geometryColumns(suffixList), source);
+        replaceFromTemp(table, codeColumn, suffixList, temp);
+    }
+
+    /**
+     * Fill a staging table from the existing display rows joined with the geometry in a temporary
+     * table, then swap it in. Rows are inserted in the order their geometry was copied, so the
+     * table is laid out in that order, with rows that have no geometry last.
+     */
+    protected void replaceFromTemp(String table, String codeColumn, List<String> suffixList, String temp)
+            throws SQLException {
+        String staging = createStaging(table);
+        StringBuilder columns = new StringBuilder();
+        StringBuilder values = new StringBuilder();
+        for (String suffix: suffixList) {
+            columns.append(", geojson").append(suffix).append(", geom").append(suffix);
+            values.append(", g.geojson").append(suffix).append(", g.geom").append(suffix);
+        }
+        Statement stmt = conn.createStatement();
+        stmt.execute("insert into " + staging + " (" + codeColumn + ", name, lon, lat" + columns + ") " +
+                "select d." + codeColumn + ", d.name, d.lon, d.lat" + values + " from " +
+                table + " d left join " + temp + " g on g.code = d." + codeColumn + " order by g.ord");
+        stmt.execute("drop table " + temp);
+        stmt.close();
+        swap(table);
+    }
+
+    /**
+     * Update the geometry columns of some rows of a display table. The rows are copied into a
+     * temporary table and applied with a single update statement, so readers see either none or
+     * all of the changed rows.
+     *
+     * @param rowList triples of code, GeoJSON and hex EWKB geometry
+     */
+    public void updateGeometry(String table, String codeColumn, List<String[]> rowList) throws SQLException {
+        updateGeometry(table, codeColumn, Arrays.asList(""), rowList);
+    }
+
+    /**
+     * Update several sets of geometry columns of some rows of a display table.
+     *
+     * @param suffixList the suffix of each geojson and geom column pair
+     * @param rowList the code followed by GeoJSON and hex EWKB geometry for each suffix
+     */
+    public void updateGeometry(String table, String codeColumn, List<String> suffixList, List<String[]> rowList)
+            throws SQLException {
+        String temp = copyGeometry(table, suffixList, rowList);
+        StringBuilder buf = new StringBuilder();
+        for (String suffix: suffixList) {
+            buf.append(buf.length() == 0 ? "" : ", ");
+            buf.append("geom").append(suffix).append(" = g.geom").append(suffix);
+            buf.append(", geojson").append(suffix).append(" = g.geojson").append(suffix);
+        }
+        Statement stmt = conn.createStatement();
+        stmt.execute("update " + table + " d set " + buf + " from " + temp + " g where g.code = d." + codeColumn);
+        stmt.execute("drop table " + temp);
+        stmt.close();
+    }
+
+    /**
+     * Add a geojson and geom column pair with the given suffix to a display table if the table
+     * does not already have them.
+     */
+    public void addGeometryColumns(String table, String suffix, int srid) throws SQLException {
+        Statement stmt = conn.createStatement();
+        stmt.execute("alter table " + table + " add column if not exists geojson" + suffix + " varchar, " +
+                "add column if not exists geom" + suffix + " GEOMETRY(MULTIPOLYGON," + srid + ")");
+        stmt.close();
+    }
+
+    /**
+     * Copy codes, GeoJSON and hex EWKB geometries into a new temporary table.
+     *
+     * @return the name of the temporary table
+     */
+    protected String copyGeometry(String table, List<String> suffixList, List<String[]> rowList) throws SQLException {
+        String temp = createGeometryTemp(table, suffixList);
+        Copy copy = open(temp, geometryColumns(suffixList));
+        try {
+            for (String[] row: rowList) {
+                copy.row((Object[])row);
+            }
+            copy.close();
+        } catch (SQLException e) {
+            copy.cancel(e);
+            throw e;
+        }
+        bytes += copy.bytes;
+        return temp;
+    }
+
+    /**
+     * Create a new temporary table for codes, GeoJSON and hex EWKB geometries, numbered in the
+     * order they are copied.
+     *
+     * @return the name of the temporary table
+     */
+    protected String createGeometryTemp(String table, List<String> suffixList) throws SQLException {
+        String temp = table + "_geom";
+        StringBuilder definition = new StringBuilder("ord serial, code varchar primary key");
+        for (String suffix: suffixList) {
+            definition.append(", geojson").append(suffix).append(" varchar, geom").append(suffix).append(" geometry");
+        }
+        Statement stmt = conn.createStatement();
+        stmt.execute("drop table if exists " + temp);
+        stmt.execute("create temporary table " + temp + " (" + definition + ")");
+        stmt.close();
+        return temp;
+    }
+
+    protected static String geometryColumns(List<String> suffixList) {
+        StringBuilder columns = new StringBuilder("code");
+        for (String suffix: suffixList) {
+            columns.append(", geojson").append(suffix).append(", geom").append(suffix);
+        }
+        return columns.toString();
+    }
+
+    /**
+     * Start a COPY into a table.
+     *
+     * @param columns comma separated column list
+     */
+    public Copy open(String table, String columns) throws SQLException {
+        return new Copy(copyManager.copyIn("copy " + table + " (" + columns + ") from stdin"));
+    }
+
+    /**
+     * COPY the rows of a source into a table, cancelling the COPY if the source fails. The bytes
+     * copied are added to those of the writer.
+     *
+     * @param columns comma separated column list
+     * @return the completed COPY, for its row and byte counts
+     */
+    public Copy copy(String table, String columns, RowSource source) throws Exception {
+        Copy copy = open(table, columns);
+        try {
+            source.copyTo(copy);
+            copy.close();
+        } catch (Exception e) {
+            copy.cancel(e);
+            throw e;
+        }
+        bytes += copy.bytes;
+        return copy;
+    }
+
+    /**
+     * Streams rows into a COPY.
+     */
+    public interface RowSource {
+        void copyTo(Copy copy) throws Exception;
+    }
+
+    /**
+     * A COPY in progress, written in PostgreSQL text format.
+     */
+    public static class Copy {
+
+        protected CopyIn copyIn;
+        protected StringBuilder buf = new StringBuilder();
+        public long rows;
+        public long bytes;
+
+        protected Copy(CopyIn copyIn) {
+            this.copyIn = copyIn;
+        }
+
+        /**
+         * Write one row. Null values are written as SQL nulls, other values as their string form.
+         */
+        public void row(Object... values) throws SQLException {
+            for (int i = 0; i < values.length; i++) {
+                if (i > 0) {
+                    buf.append('\t');
+                }
+                if (values[i] == null) {
+                    buf.append("\\N");
+                } else {
+                    escape(values[i].toString());
+                }
+            }
+            buf.append('\n');
+            rows++;
+            if (buf.length() >= BUFFER_SIZE) {
+                flush();
+            }
+        }
+
+        public long close() throws SQLException {
+            flush();
+            copyIn.endCopy();
+            return rows;
+        }
+
+        /**
+         * Cancel the COPY after a failure if it is still in progress, so the connection can be
+         * used again. A failure to cancel is added to the original failure.
+         */
+        public void cancel(Exception cause) {
+            try {
+                if (copyIn.isActive()) {
+                    copyIn.cancelCopy();
+                }
+            } catch (SQLException e) {
+                cause.addSuppressed(e);
+            }
+        }
+
+        protected void escape(String value) {
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                switch (c) {
+                    case '\\': buf.append("\\\\"); break;
+                    case '\t': buf.append("\\t"); break;
+                    case '\n': buf.append("\\n"); break;
+                    case '\r': buf.append("\\r"); break;
+                    default: buf.append(c);
+                }
+            }
+        }
+
+        protected void flush() throws SQLException {
+            if (buf.length() > 0) {
+                byte[] data = buf.toString().getBytes(StandardCharsets.UTF_8);
+                copyIn.writeToCopy(data, 0, data.length);
+                bytes += data.length;
+                buf.setLength(0);
+            }
+        }
+    }
+}
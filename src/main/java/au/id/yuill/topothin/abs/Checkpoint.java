@@ -0,0 +1,176 @@
+/*
+ * Copyright (c) 2017 Peter Yuill
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package au.id.yuill.topothin.abs;
+
+import au.id.yuill.topothin.Row;
+import au.id.yuill.topothin.TopoCoordData;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Checkpoints of a thinning run, so a run that dies after thinning can be restarted without
+ * thinning again, and without saving the tables already committed. Source rows are checkpointed
+ * by the snapshot cache. The thinned rows of each table are written in the same snapshot format
+ * to a thinned directory, and a manifest records the steps that are complete.
+ * <br><br>
+ * The manifest is keyed by the fingerprints of the rows being thinned and the zoom levels, so a
+ * checkpoint is only used by a run that would thin the same rows the same way. A checkpoint for
+ * any other run is cleared. The checkpoint is removed when the run completes.
+ *
+ * @version 1.0
+ * @author Peter Yuill
+ */
+public class Checkpoint {
+
+    public static final String THINNED = "thinned";
+
+    protected File dir;
+    protected String key;
+    protected Set<String> doneSet = new LinkedHashSet();
+    protected SnapshotCache thinnedCache;
+
+    public Checkpoint(File dir, String key) throws IOException {
+        this.dir = dir;
+        this.key = key;
+        thinnedCache = new SnapshotCache(new File(dir, THINNED));
+        File manifest = manifestFile();
+        if (manifest.isFile()) {
+            List<String> lineList = Files.readAllLines(manifest.toPath(), StandardCharsets.UTF_8);
+            if (!lineList.isEmpty() && lineList.get(0).equals(key)) {
+                doneSet.addAll(lineList.subList(1, lineList.size()));
+            } else {
+                System.out.println("Checkpoint is for another run, clearing it");
+                clear();
+            }
+        }
+        if (!doneSet.isEmpty()) {
+            System.out.println("Resume after " + doneSet);
+        }
+    }
+
+    /**
+     * Create a checkpoint in the directory named by the topothin.checkpointDir system property
+     * for a run thinning the given rows.
+     *
+     * @return the checkpoint or null if the property is not set
+     */
+    public static Checkpoint fromSystemProperties(List<Row> rowList, Map<String, Long> fingerprintMap)
+            throws IOException {
+        String dirName = System.getProperty("topothin.checkpointDir");
+        if (dirName == null) {
+            return null;
+        }
+        return new Checkpoint(new File(dirName), key(rowList, fingerprintMap));
+    }
+
+    /**
+     * @return a hash of the keys and fingerprints of the rows in order, and the zoom levels
+     */
+    public static String key(List<Row> rowList, Map<String, Long> fingerprintMap) {
+        long hash = Fingerprints.FNV_OFFSET;
+        for (Row row: rowList) {
+            String rowKey = Fingerprints.key(row);
+            hash = Fingerprints.mix(hash, rowKey.hashCode());
+            hash = Fingerprints.mix(hash, fingerprintMap.get(rowKey));
+        }
+        return Long.toHexString(hash) + "|" + rowList.size() + "|" + System.getProperty("topothin.zooms");
+    }
+
+    public boolean isDone(String step) {
+        return doneSet.contains(step);
+    }
+
+    /**
+     * Record that a step is complete. The manifest is replaced atomically.
+     */
+    public void done(String step) throws IOException {
+        doneSet.add(step);
+        List<String> lineList = new ArrayList();
+        lineList.add(key);
+        lineList.addAll(doneSet);
+        dir.mkdirs();
+        File temp = File.createTempFile("manifest", ".tmp", dir);
+        Files.write(temp.toPath(), lineList, StandardCharsets.UTF_8);
+        Files.move(temp.toPath(), manifestFile().toPath(), StandardCopyOption.REPLACE_EXISTING,
+                StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * Write the thinned rows of each table and record the thinned step.
+     */
+    public void writeThinned(List<AbsTable> tableList, TopoCoordData tcd) throws IOException {
+        Phase phase = RunReport.start("checkpoint", null);
+        for (AbsTable table: tableList) {
+            List<Row> rowList = tcd.tableMap.get(table);
+            SnapshotCache.Writer snapshot = thinnedCache.write(table);
+            if (rowList != null) {
+                for (Row row: rowList) {
+                    snapshot.add(row);
+                }
+                phase.rows.addAndGet(rowList.size());
+            }
+            snapshot.commit();
+            phase.bytes.addAndGet(thinnedCache.file(table).length());
+        }
+        done(THINNED);
+        phase.end();
+    }
+
+    /**
+     * Restore the thinned rows of each table to the table map of the TopoCoordData. Tables with
+     * no thinned rows are left out of the map, as they are by thinning.
+     *
+     * @return false if the thinned step is not complete, in which case nothing is restored
+     */
+    public boolean readThinned(List<AbsTable> tableList, TopoCoordData tcd) throws IOException {
+        if (!isDone(THINNED)) {
+            return false;
+        }
+        Phase phase = RunReport.start("resume", null);
+        for (AbsTable table: tableList) {
+            List<Row> rowList = new ArrayList();
+            if (!thinnedCache.read(table, rowList::add)) {
+                throw new IllegalStateException("Checkpoint of thinned " + table + " is missing or damaged");
+            }
+            if (!rowList.isEmpty()) {
+                tcd.tableMap.put(table, rowList);
+            }
+            phase.rows.addAndGet(rowList.size());
+        }
+        phase.end();
+        return true;
+    }
+
+    /**
+     * Remove the manifest and the thinned rows.
+     */
+    public void clear() {
+        doneSet.clear();
+        File[] files = new File(dir, THINNED).listFiles();
+        if (files != null) {
+            for (File file: files) {
+                file.delete();
+            }
+        }
+        manifestFile().delete();
+    }
+
+    protected File manifestFile() {
+        return new File(dir, "manifest");
+    }
+}
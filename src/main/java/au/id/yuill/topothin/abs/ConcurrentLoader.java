@@ -0,0 +1,156 @@
+/*
+ * Copyright (c) 2017 Peter Yuill
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package au.id.yuill.topothin.abs;
+
+import au.id.yuill.topothin.Row;
+
+import org.locationtech.jts.io.WKBReader;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Consumer;
+
+/**
+ * Load several ABS tables at once. Each table is fetched on its own connection and thread, the
+ * geometry of each row is decoded on a shared worker pool while fetching continues, and decoded
+ * rows are passed to a single ingest stage in table order and then query order. The ingest stage
+ * sees rows in exactly the order a sequential load would produce, so results are reproducible.
+ * <br><br>
+ * The number of rows in flight per table is bounded so a slow ingest stage holds back fetching
+ * rather than filling the heap. Tables with a valid snapshot in their snapshot cache are read from
+ * the snapshot, and snapshots are written for the others as their rows are ingested.
+ * <br><br>
+ * A load phase is recorded in the RunReport for each table with its rows, vertices and the
+ * encoded geometry bytes fetched from the database.
+ *
+ * @version 1.0
+ * @author Peter Yuill
+ */
+public class ConcurrentLoader {
+
+    protected static final Future<Row> END = CompletableFuture.completedFuture(null);
+
+    protected String dbUrl;
+    protected String dbUser;
+    protected String dbPass;
+    protected int threads;
+    protected int queueSize = 1000;
+
+    public ConcurrentLoader(String dbUrl, String dbUser, String dbPass, int threads) {
+        this.dbUrl = dbUrl;
+        this.dbUser = dbUser;
+        this.dbPass = dbPass;
+        this.threads = threads;
+    }
+
+    /**
+     * Load the tables, passing each decoded row to the ingest action on the calling thread.
+     */
+    public void load(List<AbsTable> tableList, Consumer<Row> ingest) throws Exception {
+        ExecutorService fetchPool = Executors.newFixedThreadPool(tableList.size());
+        ExecutorService decodePool = Executors.newFixedThreadPool(threads);
+        List<BlockingQueue<Future<Row>>> queueList = new ArrayList();
+        List<Future<?>> fetchList = new ArrayList();
+        // set by each fetch thread before its first row is queued, read by the ingest stage
+        SnapshotCache.Writer[] snapshots = new SnapshotCache.Writer[tableList.size()];
+        Phase[] phases = new Phase[tableList.size()];
+        try {
+            for (int i = 0; i < tableList.size(); i++) {
+                int index = i;
+                AbsTable table = tableList.get(i);
+                Phase phase = RunReport.start("load", table.tableName);
+                phases[i] = phase;
+                BlockingQueue<Future<Row>> queue = new ArrayBlockingQueue(queueSize);
+                queueList.add(queue);
+                ThreadLocal<WKBReader> readers = ThreadLocal.withInitial(table::createWkbReader);
+                ThreadLocal<TwkbReader> twkbReaders = ThreadLocal.withInitial(table::createTwkbReader);
+                fetchList.add(fetchPool.submit(() -> {
+                    try {
+                        if (table.snapshotCache != null &&
+                                table.snapshotCache.read(table, row -> put(queue, CompletableFuture.completedFuture(row)))) {
+                            return null;
+                        }
+                        if (table.snapshotCache != null) {
+                            snapshots[index] = table.snapshotCache.write(table);
+                        }
+                        // tables read from a geometry source need no connection
+                        try (Connection conn = table.getGeometrySource() != null ? null :
+                                DriverManager.getConnection(dbUrl, dbUser, dbPass)) {
+                            table.fetchRows(conn, (row, bytes) -> {
+                                phase.bytes.addAndGet(bytes.length);
+                                queue.put(decodePool.submit(() -> {
+                                    row.mp = table.decode(bytes, readers.get(), twkbReaders.get());
+                                    return row;
+                                }));
+                            });
+                        }
+                    } finally {
+                        queue.put(END);
+                    }
+                    return null;
+                }));
+            }
+            for (int i = 0; i < tableList.size(); i++) {
+                AbsTable table = tableList.get(i);
+                BlockingQueue<Future<Row>> queue = queueList.get(i);
+                table.count = 0;
+                System.out.print("Load " + table.tableName + " ");
+                for (Future<Row> future = queue.take(); future != END; future = queue.take()) {
+                    Row row = future.get();
+                    if (row.mp.isEmpty()) {
+                        // nothing left once snapped to the grid
+                        continue;
+                    }
+                    if (snapshots[i] != null) {
+                        snapshots[i].add(row);
+                    }
+                    phases[i].verticesIn.addAndGet(row.mp.getNumPoints());
+                    ingest.accept(row);
+                    table.count++;
+                    if ((table.count % 10) == 0) {
+                        System.out.print("*");
+                    }
+                }
+                System.out.println("*");
+                fetchList.get(i).get();
+                if (snapshots[i] != null) {
+                    snapshots[i].commit();
+                    snapshots[i] = null;
+                }
+                phases[i].rows.set(table.count);
+                phases[i].end();
+            }
+        } finally {
+            fetchPool.shutdownNow();
+            decodePool.shutdownNow();
+            for (SnapshotCache.Writer snapshot: snapshots) {
+                if (snapshot != null) {
+                    snapshot.discard();
+                }
+            }
+        }
+    }
+
+    protected static void put(BlockingQueue<Future<Row>> queue, Future<Row> future) {
+        try {
+            queue.put(future);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IllegalStateException("Interrupted while loading", e);
+        }
+    }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright (c) 2017 Peter Yuill
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package au.id.yuill.topothin.abs;
+
+import au.id.yuill.topothin.Row;
+
+import org.locationtech.jts.geom.CoordinateSequence;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.MultiPolygon;
+import org.locationtech.jts.geom.Polygon;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Fingerprints of source geometry, used to find the rows that have changed since the last run.
+ * A fingerprint is a 64 bit FNV-1a hash of the polygon structure and coordinates of a row. The
+ * fingerprints of the last successful run are kept in the thin_fingerprint table, keyed by the
+ * table name with release year and the row code.
+ *
+ * @version 1.0
+ * @author Peter Yuill
+ */
+public class Fingerprints {
+
+    protected static final long FNV_OFFSET = 0xcbf29ce484222325L;
+    protected static final long FNV_PRIME = 0x100000001b3L;
+
+    public static String key(Row row) {
+        return row.table + "|" + row.code;
+    }
+
+    public static long of(MultiPolygon mp) {
+        long hash = FNV_OFFSET;
+        hash = mix(hash, mp.getNumGeometries());
+        for (int p = 0; p < mp.getNumGeometries(); p++) {
+            Polygon polygon = (Polygon)mp.getGeometryN(p);
+            hash = mix(hash, polygon.getNumInteriorRing());
+            hash = mix(hash, polygon.getExteriorRing());
+            for (int r = 0; r < polygon.getNumInteriorRing(); r++) {
+                hash = mix(hash, polygon.getInteriorRingN(r));
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Compute the fingerprints of the source geometry of the rows.
+     */
+    public static Map<String, Long> of(List<Row> rowList) {
+        Map<String, Long> fingerprintMap = new HashMap();
+        for (Row row: rowList) {
+            fingerprintMap.put(key(row), of(row.mp));
+        }
+        return fingerprintMap;
+    }
+
+    /**
+     * Load the fingerprints saved by the last run, or an empty map if there are none.
+     */
+    public static Map<String, Long> load(Connection conn) throws Exception {
+        Map<String, Long> fingerprintMap = new HashMap();
+        Statement stmt = conn.createStatement();
+        stmt.execute("create table if not exists thin_fingerprint (table_name varchar(20), code varchar(20), " +
+                "fingerprint bigint, primary key (table_name, code))");
+        ResultSet rs = stmt.executeQuery("select table_name, code, fingerprint from thin_fingerprint");
+        while(rs.next()) {
+            fingerprintMap.put(rs.getString(1) + "|" + rs.getString(2), rs.getLong(3));
+        }
+        rs.close();
+        stmt.close();
+        return fingerprintMap;
+    }
+
+    public static void save(Connection conn, Map<String, Long> fingerprintMap) throws Exception {
+        Statement stmt = conn.createStatement();
+        stmt.execute("create table if not exists thin_fingerprint (table_name varchar(20), code varchar(20), " +
+                "fingerprint bigint, primary key (table_name, code))");
+        stmt.close();
+        BulkWriter bulkWriter = new BulkWriter(conn);
+        bulkWriter.copy(bulkWriter.createStaging("thin_fingerprint"), "table_name, code, fingerprint", copy -> {
+            for (Map.Entry<String, Long> entry: fingerprintMap.entrySet()) {
+                int split = entry.getKey().indexOf('|');
+                copy.row(entry.getKey().substring(0, split), entry.getKey().substring(split + 1), entry.getValue());
+            }
+        });
+        bulkWriter.swap("thin_fingerprint");
+    }
+
+    protected static long mix(long hash, LineString ring) {
+        CoordinateSequence seq = ring.getCoordinateSequence();
+        hash = mix(hash, seq.size());
+        for (int i = 0; i < seq.size(); i++) {
+            hash = mix(hash, Double.doubleToLongBits(seq.getX(i)));
+            hash = mix(hash, Double.doubleToLongBits(seq.getY(i)));
+        }
+        return hash;
+    }
+
+    protected static long mix(long hash, long value) {
+        for (int i = 0; i < 8; i++) {
+            hash ^= (value >>> (i * 8)) & 0xFF;
+            hash *= FNV_PRIME;
+        }
+        return hash;
+    }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright (c) 2017 Peter Yuill
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package au.id.yuill.topothin.abs;
+
+import java.util.AbstractList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Consumer;
+import java.util.function.IntConsumer;
+
+/**
+ * A fork/join task that applies an action to each element of a list. The list is split in halves
+ * until a range is small enough to process directly. The action must only modify the element it
+ * is given so that the result does not depend on scheduling.
+ *
+ * @version 1.0
+ * @author Peter Yuill
+ */
+public class ForEachTask<T> extends RecursiveAction {
+
+    protected static final int THRESHOLD = 8;
+
+    protected List<T> list;
+    protected int from;
+    protected int to;
+    protected Consumer<T> action;
+
+    public ForEachTask(List<T> list, int from, int to, Consumer<T> action) {
+        this.list = list;
+        this.from = from;
+        this.to = to;
+        this.action = action;
+    }
+
+    @Override
+    protected void compute() {
+        if (to - from <= THRESHOLD) {
+            for (int i = from; i < to; i++) {
+                action.accept(list.get(i));
+            }
+        } else {
+            int mid = (from + to) >>> 1;
+            invokeAll(new ForEachTask<T>(list, from, mid, action), new ForEachTask<T>(list, mid, to, action));
+        }
+    }
+
+    public static <T> void forEach(ForkJoinPool pool, List<T> list, Consumer<T> action) {
+        pool.invoke(new ForEachTask<T>(list, 0, list.size(), action));
+    }
+
+    /**
+     * Apply an action to each index from 0 to size - 1, for filling arrays in parallel. The action
+     * must only modify the slots for the index it is given.
+     */
+    public static void forEachIndex(ForkJoinPool pool, int size, IntConsumer action) {
+        forEach(pool, new AbstractList<Integer>() {
+            @Override
+            public Integer get(int index) {
+                return index;
+            }
+
+            @Override
+            public int size() {
+                return size;
+            }
+        }, action::accept);
+    }
+}
@@ -0,0 +1,114 @@
+/*
+ * Copyright (c) 2017 Peter Yuill
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package au.id.yuill.topothin.abs;
+
+import org.locationtech.jts.geom.CoordinateSequence;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.MultiPolygon;
+import org.locationtech.jts.geom.Polygon;
+
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+
+/**
+ * Writes GeoJSON geometry text in the same form as the PostGIS ST_AsGeoJSON(geom,6,0) function,
+ * so display tables can be written without a second pass over the table in the database.
+ * Coordinates are rounded to a fixed number of decimal places with trailing zeros removed.
+ * Methods are thread safe.
+ *
+ * @version 1.0
+ * @author Peter Yuill
+ */
+public class GeoJson {
+
+    public static final int PRECISION = 6;
+
+    protected static final double[] SCALE = {1.0, 1.0e1, 1.0e2, 1.0e3, 1.0e4, 1.0e5, 1.0e6, 1.0e7, 1.0e8, 1.0e9};
+
+    public static String write(MultiPolygon mp) {
+        return write(mp, PRECISION);
+    }
+
+    public static String write(MultiPolygon mp, int precision) {
+        StringBuilder buf = new StringBuilder();
+        buf.append("{\"type\":\"MultiPolygon\",\"coordinates\":");
+        appendCoordinates(buf, mp, precision);
+        buf.append('}');
+        return buf.toString();
+    }
+
+    public static void appendCoordinates(StringBuilder buf, MultiPolygon mp, int precision) {
+        buf.append('[');
+        for (int p = 0; p < mp.getNumGeometries(); p++) {
+            if (p > 0) {
+                buf.append(',');
+            }
+            Polygon polygon = (Polygon)mp.getGeometryN(p);
+            buf.append('[');
+            appendRing(buf, polygon.getExteriorRing(), precision);
+            for (int r = 0; r < polygon.getNumInteriorRing(); r++) {
+                buf.append(',');
+                appendRing(buf, polygon.getInteriorRingN(r), precision);
+            }
+            buf.append(']');
+        }
+        buf.append(']');
+    }
+
+    protected static void appendRing(StringBuilder buf, LineString ring, int precision) {
+        CoordinateSequence seq = ring.getCoordinateSequence();
+        buf.append('[');
+        for (int i = 0; i < seq.size(); i++) {
+            if (i > 0) {
+                buf.append(',');
+            }
+            buf.append('[');
+            appendNumber(buf, seq.getX(i), precision);
+            buf.append(',');
+            appendNumber(buf, seq.getY(i), precision);
+            buf.append(']');
+        }
+        buf.append(']');
+    }
+
+    /**
+     * Append a number rounded half even on its exact binary value, as printf does, with trailing
+     * zeros and any trailing decimal point removed.
+     */
+    public static void appendNumber(StringBuilder buf, double value, int precision) {
+        double scaled = Math.abs(value) * SCALE[precision];
+        double rounded = Math.rint(scaled);
+        long units;
+        if (Math.abs(Math.abs(scaled - rounded) - 0.5) > 1.0e-6 && scaled < 1.0e15) {
+            units = (long)rounded;
+        } else {
+            // close to a tie or too large for a long, so round the exact value
+            units = new BigDecimal(Math.abs(value)).setScale(precision, RoundingMode.HALF_EVEN).unscaledValue().longValue();
+        }
+        if (units != 0 && value < 0.0) {
+            buf.append('-');
+        }
+        long factor = (long)SCALE[precision];
+        buf.append(units / factor);
+        long fraction = units % factor;
+        if (fraction != 0) {
+            buf.append('.');
+            int digits = precision;
+            while (fraction % 10 == 0) {
+                fraction /= 10;
+                digits--;
+            }
+            String text = Long.toString(fraction);
+            for (int i = text.length(); i < digits; i++) {
+                buf.append('0');
+            }
+            buf.append(text);
+        }
+    }
+}
@@ -0,0 +1,41 @@
+/*
+ * Copyright (c) 2017 Peter Yuill
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package au.id.yuill.topothin.abs;
+
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.MultiPolygon;
+
+import java.util.List;
+
+/**
+ * A source of ABS table rows other than the database, such as the published boundary files. Rows
+ * are fetched with their geometry still encoded so it can be decoded in parallel, in the same way
+ * as rows fetched from the database. An AbsTable with no geometry source reads the database.
+ *
+ * @version 1.0
+ * @author Peter Yuill
+ */
+public interface GeometrySource {
+
+    /**
+     * Fetch the rows of a table that have geometry, in source order. The values of the source
+     * columns of the table are passed to createRow.
+     */
+    void fetchRows(AbsTable table, AbsTable.RowSink sink) throws Exception;
+
+    /**
+     * Decode geometry fetched by this source. Must be thread safe.
+     */
+    MultiPolygon decode(byte[] bytes, GeometryFactory factory) throws Exception;
+
+    /**
+     * Read attribute columns of every row of a table that has geometry, in source order.
+     */
+    List<String[]> readAttributes(AbsTable table, String... columns) throws Exception;
+}
@@ -0,0 +1,148 @@
+/*
+ * Copyright (c) 2017 Peter Yuill
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package au.id.yuill.topothin.abs;
+
+import org.locationtech.jts.geom.CoordinateSequence;
+import org.locationtech.jts.geom.CoordinateSequenceFactory;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.LinearRing;
+import org.locationtech.jts.geom.MultiPolygon;
+import org.locationtech.jts.geom.Polygon;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Snaps source coordinates to a fixed integer grid before thinning. Boundaries that should be
+ * shared by neighbouring layers but differ by tiny amounts in the published datasets snap to the
+ * same vertices, so they are found as one shared edge instead of many short edges and slivers.
+ * <br><br>
+ * Each ordinate is rounded to the nearest multiple of 1/scale, so the default scale of 1e7 snaps
+ * GDA94 degrees to about a centimetre. Snapped ordinates are held as the integer grid position
+ * while a ring is rebuilt. Consecutive vertices that snap to the same position are dropped, as
+ * are spikes where the ring goes out to a vertex and straight back. Rings left with fewer than
+ * four vertices or with no area are dropped, as are polygons that lose their shell. Methods are
+ * thread safe.
+ *
+ * @version 1.0
+ * @author Peter Yuill
+ */
+public class GridSnapper {
+
+    protected double scale;
+
+    public GridSnapper(double scale) {
+        this.scale = scale;
+    }
+
+    /**
+     * @return a snapper for the grid set by the topothin.gridScale system property, or null if it
+     * is not set
+     */
+    public static GridSnapper fromSystemProperties() {
+        String scale = System.getProperty("topothin.gridScale");
+        if (scale == null) {
+            return null;
+        }
+        return new GridSnapper(Double.parseDouble(scale));
+    }
+
+    /**
+     * @return the snapped geometry, empty if nothing is left of it. Rows with empty geometry are
+     * skipped when loading.
+     */
+    public MultiPolygon snap(MultiPolygon mp) {
+        GeometryFactory factory = mp.getFactory();
+        List<Polygon> polygonList = new ArrayList();
+        for (int p = 0; p < mp.getNumGeometries(); p++) {
+            Polygon polygon = (Polygon)mp.getGeometryN(p);
+            LinearRing shell = snap(polygon.getExteriorRing(), factory);
+            if (shell == null) {
+                continue;
+            }
+            List<LinearRing> holeList = new ArrayList();
+            for (int r = 0; r < polygon.getNumInteriorRing(); r++) {
+                LinearRing hole = snap(polygon.getInteriorRingN(r), factory);
+                if (hole != null) {
+                    holeList.add(hole);
+                }
+            }
+            polygonList.add(factory.createPolygon(shell, holeList.toArray(new LinearRing[holeList.size()])));
+        }
+        return factory.createMultiPolygon(polygonList.toArray(new Polygon[polygonList.size()]));
+    }
+
+    /**
+     * @return the snapped ring, or null if it has fewer than four vertices or no area once snapped
+     */
+    protected LinearRing snap(LineString ring, GeometryFactory factory) {
+        CoordinateSequence seq = ring.getCoordinateSequence();
+        // the ring is built open, without the closing vertex, as a stack so spikes can be popped
+        long[] xs = new long[seq.size()];
+        long[] ys = new long[seq.size()];
+        int n = 0;
+        for (int i = 0; i < seq.size() - 1; i++) {
+            long x = Math.round(seq.getX(i) * scale);
+            long y = Math.round(seq.getY(i) * scale);
+            if (n > 0 && x == xs[n - 1] && y == ys[n - 1]) {
+                continue;
+            }
+            if (n > 1 && x == xs[n - 2] && y == ys[n - 2]) {
+                n--;
+                continue;
+            }
+            xs[n] = x;
+            ys[n] = y;
+            n++;
+        }
+        // then remove duplicates and spikes where the ring closes
+        int start = 0;
+        while (n - start > 2) {
+            if (xs[n - 1] == xs[start] && ys[n - 1] == ys[start]) {
+                n--;
+            } else if (xs[n - 2] == xs[start] && ys[n - 2] == ys[start]) {
+                n--;
+            } else if (xs[n - 1] == xs[start + 1] && ys[n - 1] == ys[start + 1]) {
+                start++;
+            } else {
+                break;
+            }
+        }
+        if (n - start < 3 || area2(xs, ys, start, n) == 0) {
+            return null;
+        }
+        CoordinateSequenceFactory sequenceFactory = factory.getCoordinateSequenceFactory();
+        CoordinateSequence snapped = sequenceFactory.create(n - start + 1, 2);
+        for (int i = start; i <= n; i++) {
+            int j = i == n ? start : i;
+            snapped.setOrdinate(i - start, CoordinateSequence.X, xs[j] / scale);
+            snapped.setOrdinate(i - start, CoordinateSequence.Y, ys[j] / scale);
+        }
+        return factory.createLinearRing(snapped);
+    }
+
+    /**
+     * @return twice the signed area of an open ring of grid positions. Positions are taken
+     * relative to the first vertex and any overflow wraps, so the result is zero exactly when the
+     * true area is, for rings spanning fewer than 2^31 grid positions each way.
+     */
+    protected static long area2(long[] xs, long[] ys, int start, int end) {
+        long area = 0;
+        for (int i = start + 1; i < end - 1; i++) {
+            area += (xs[i] - xs[start]) * (ys[i + 1] - ys[start]) - (xs[i + 1] - xs[start]) * (ys[i] - ys[start]);
+        }
+        return area;
+    }
+
+    @Override
+    public String toString() {
+        return Double.toString(scale);
+    }
+}
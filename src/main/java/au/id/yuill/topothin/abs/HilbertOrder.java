@@ -0,0 +1,138 @@
+/*
+ * Copyright (c) 2017 Peter Yuill
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package au.id.yuill.topothin.abs;
+
+import au.id.yuill.topothin.Row;
+import au.id.yuill.topothin.Table;
+
+import org.locationtech.jts.geom.Envelope;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Orders rows along a Hilbert curve through the centres of their envelopes, so rows that are
+ * near each other on the map are near each other in the list. Thinning rows in this order keeps
+ * the nodes and edges being worked on close together in memory, and writing display rows in this
+ * order clusters the table pages by location for bounding box queries.
+ * <br><br>
+ * Ordering is enabled by the topothin.hilbert system property. The curve covers the envelope of
+ * the rows being sorted on a grid of 2^16 cells a side. Rows with the same key keep their
+ * original order, so the result is reproducible.
+ *
+ * @version 1.0
+ * @author Peter Yuill
+ */
+public class HilbertOrder {
+
+    public static final int BITS = 16;
+
+    public static boolean enabled = Boolean.getBoolean("topothin.hilbert");
+    public static int threads = Integer.getInteger("topothin.threads", Runtime.getRuntime().availableProcessors());
+
+    /**
+     * Sort the rows of each table along the curve, keeping the tables in the order they first
+     * appear. Rows with no geometry go last in their table.
+     *
+     * @return a new sorted list, or the same list if ordering is not enabled
+     */
+    public static List<Row> sortIfEnabled(List<Row> rowList) {
+        if (!enabled || rowList == null) {
+            return rowList;
+        }
+        Map<Table, List<Row>> tableMap = new LinkedHashMap();
+        for (Row row: rowList) {
+            List<Row> tableList = tableMap.get(row.table);
+            if (tableList == null) {
+                tableList = new ArrayList();
+                tableMap.put(row.table, tableList);
+            }
+            tableList.add(row);
+        }
+        List<Row> result = new ArrayList(rowList.size());
+        for (List<Row> tableList: tableMap.values()) {
+            result.addAll(sort(tableList));
+        }
+        return result;
+    }
+
+    /**
+     * Sort rows along the curve through the envelope of all of them.
+     *
+     * @return a new sorted list
+     */
+    public static List<Row> sort(List<Row> rowList) {
+        Envelope bounds = new Envelope();
+        for (Row row: rowList) {
+            if (row.mp != null) {
+                bounds.expandToInclude(row.mp.getEnvelopeInternal());
+            }
+        }
+        long[] keys = new long[rowList.size()];
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            ForEachTask.forEachIndex(pool, keys.length, i -> {
+                Row row = rowList.get(i);
+                keys[i] = row.mp == null ? Long.MAX_VALUE : key(row.mp.getEnvelopeInternal().centre().x,
+                        row.mp.getEnvelopeInternal().centre().y, bounds);
+            });
+        } finally {
+            pool.shutdown();
+        }
+        Integer[] order = new Integer[keys.length];
+        for (int i = 0; i < order.length; i++) {
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingLong(i -> keys[i]));
+        List<Row> result = new ArrayList(rowList.size());
+        for (int i: order) {
+            result.add(rowList.get(i));
+        }
+        return result;
+    }
+
+    /**
+     * @return the distance along the curve of the cell holding the point
+     */
+    public static long key(double x, double y, Envelope bounds) {
+        long n = 1L << BITS;
+        long cx = cell(x, bounds.getMinX(), bounds.getWidth(), n);
+        long cy = cell(y, bounds.getMinY(), bounds.getHeight(), n);
+        long d = 0;
+        for (long s = n >> 1; s > 0; s >>= 1) {
+            long rx = (cx & s) > 0 ? 1 : 0;
+            long ry = (cy & s) > 0 ? 1 : 0;
+            d += s * s * ((3 * rx) ^ ry);
+            // rotate the quadrant so the curve joins up
+            if (ry == 0) {
+                if (rx == 1) {
+                    cx = n - 1 - cx;
+                    cy = n - 1 - cy;
+                }
+                long t = cx;
+                cx = cy;
+                cy = t;
+            }
+        }
+        return d;
+    }
+
+    protected static long cell(double value, double min, double size, long n) {
+        if (size <= 0.0) {
+            return 0;
+        }
+        long cell = (long)((value - min) / size * n);
+        return Math.max(0, Math.min(n - 1, cell));
+    }
+}
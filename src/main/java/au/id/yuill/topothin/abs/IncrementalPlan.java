@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2017 Peter Yuill
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package au.id.yuill.topothin.abs;
+
+import au.id.yuill.topothin.Row;
+
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
+import org.locationtech.jts.index.strtree.STRtree;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Works out which rows must be thinned again when only some source rows have changed.
+ * <br><br>
+ * The thinned form of an edge depends only on the polygons that share it, and the nodes on the
+ * boundary of a row depend only on the rows that touch it. So a row comes out exactly as it
+ * would in a full run as long as every row touching it is thinned with it. The plan therefore
+ * takes the changed rows, the rows of any table that touch them (whose shared edges change and
+ * which must be rewritten), and the rows touching those as context. Only the changed rows and
+ * their neighbours are saved; the context rows are thinned but discarded.
+ * <br><br>
+ * Rows to save are matched by table and code rather than by identity, as the thinned rows may
+ * have been restored from a checkpoint instead of thinned in this run.
+ *
+ * @version 1.0
+ * @author Peter Yuill
+ */
+public class IncrementalPlan {
+
+    public Set<Row> changedSet = Collections.newSetFromMap(new IdentityHashMap());
+    public Set<Row> rewriteSet = Collections.newSetFromMap(new IdentityHashMap());
+    public Set<Row> thinSet = Collections.newSetFromMap(new IdentityHashMap());
+    public Set<String> rewriteKeySet = new HashSet();
+    public List<String> removedList = new ArrayList();
+
+    protected List<Row> rowList;
+    protected STRtree index = new STRtree();
+
+    /**
+     * @param rowList all source rows in load order, with source geometry
+     * @param fingerprintMap the source fingerprints of this run
+     * @param savedMap the source fingerprints of the last run
+     */
+    public IncrementalPlan(List<Row> rowList, Map<String, Long> fingerprintMap, Map<String, Long> savedMap) {
+        this.rowList = rowList;
+        for (Row row: rowList) {
+            String key = Fingerprints.key(row);
+            if (!fingerprintMap.get(key).equals(savedMap.get(key))) {
+                changedSet.add(row);
+            }
+        }
+        for (String key: savedMap.keySet()) {
+            if (!fingerprintMap.containsKey(key)) {
+                removedList.add(key);
+            }
+        }
+        if (changedSet.isEmpty()) {
+            return;
+        }
+        for (Row row: rowList) {
+            index.insert(row.mp.getEnvelopeInternal(), row);
+        }
+        rewriteSet.addAll(changedSet);
+        rewriteSet.addAll(touching(changedSet));
+        thinSet.addAll(rewriteSet);
+        thinSet.addAll(touching(rewriteSet));
+        for (Row row: rewriteSet) {
+            rewriteKeySet.add(Fingerprints.key(row));
+        }
+    }
+
+    /**
+     * Get the rows to thin, in load order.
+     */
+    public List<Row> thinRows() {
+        List<Row> thinList = new ArrayList();
+        for (Row row: rowList) {
+            if (thinSet.contains(row)) {
+                thinList.add(row);
+            }
+        }
+        return thinList;
+    }
+
+    /**
+     * Get the rows to save from the thinned rows of a table.
+     *
+     * @param thinnedList the thinned rows of the table, or null if none were thinned
+     */
+    public List<Row> rewriteRows(List<Row> thinnedList) {
+        List<Row> result = new ArrayList();
+        if (thinnedList == null) {
+            return result;
+        }
+        for (Row row: thinnedList) {
+            if (rewriteKeySet.contains(Fingerprints.key(row))) {
+                result.add(row);
+            }
+        }
+        return result;
+    }
+
+    protected Set<Row> touching(Set<Row> rowSet) {
+        Set<Row> result = Collections.newSetFromMap(new IdentityHashMap());
+        for (Row row: rowSet) {
+            PreparedGeometry prepared = PreparedGeometryFactory.prepare(row.mp);
+            List<Row> candidates = index.query(row.mp.getEnvelopeInternal());
+            for (Row candidate: candidates) {
+                if (!rowSet.contains(candidate) && !result.contains(candidate) && prepared.intersects(candidate.mp)) {
+                    result.add(candidate);
+                }
+            }
+        }
+        return result;
+    }
+}
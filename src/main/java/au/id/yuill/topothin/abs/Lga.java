@@ -8,16 +8,12 @@
  */
 package au.id.yuill.topothin.abs;
 
-import org.locationtech.jts.geom.MultiPolygon;
-
 /**
  * A holder class for Local Government Area (LGA) polygons
  *
  * @version 1.0
  * @author Peter Yuill
  */
-public class Lga {
-    public String lgaCode;
+public class Lga extends AdminArea {
     public String steCode;
-    public MultiPolygon geom;
 }
@@ -10,12 +10,8 @@ package au.id.yuill.topothin.abs;
 
 import au.id.yuill.topothin.*;
 
-import org.locationtech.jts.geom.MultiPolygon;
-import org.locationtech.jts.io.WKBReader;
-
-import java.sql.Connection;
 import java.sql.ResultSet;
-import java.sql.Statement;
+import java.sql.SQLException;
 
 /**
  * A specific implementation of Table to deal with state attribute of Local Government Areas (LGA).
@@ -29,10 +25,8 @@ public class LgaTable extends AbsTable {
         super(releaseYear, "lga", additionalWhere);
     }
 
-    public void populateTopoCoordData(Connection conn, WKBReader reader, TopoCoordData tcd) throws Exception {
-        count = 0;
-        System.out.print("Load " + tableName + " ");
-        Statement stmt = conn.createStatement();
+    @Override
+    protected String buildQuery() {
         StringBuilder buf = new StringBuilder();
         buf.append("select ");
         buf.append("lga_code");
@@ -41,29 +35,49 @@ public class LgaTable extends AbsTable {
         buf.append(releaseYear);
         buf.append(", ste_code");
         buf.append(releaseYear);
-        buf.append(", ST_AsEWKB(geom) from lga");
+        buf.append(", ");
+        buf.append(geometryColumn());
+        buf.append(" from lga");
         buf.append(releaseYear);
         buf.append(" where geom is not null");
         if (additionalWhere != null) {
             buf.append(additionalWhere);
         }
-        ResultSet rs = stmt.executeQuery(buf.toString());
-        while(rs.next()) {
-            LgaRow row = new LgaRow();
-            row.table = this;
-            row.code = rs.getString(1);
-            row.name = rs.getString(2);
-            row.stateCode = rs.getString(3);
-            row.mp = (MultiPolygon)reader.read(rs.getBytes(4));
-            tcd.addRow(row);
-            count++;
-            if ((count % 10) == 0) {
-                System.out.print("*");
-            }
-        }
-        System.out.println("*");
-        rs.close();
-        stmt.close();
+        return buf.toString();
+    }
+
+    @Override
+    protected Row createRow(ResultSet rs) throws SQLException {
+        Row row = super.createRow(rs);
+        setStateCode(row, rs.getString(3));
+        return row;
+    }
+
+    @Override
+    protected Row createRow(String[] values) {
+        Row row = super.createRow(values);
+        setStateCode(row, values[2]);
+        return row;
+    }
+
+    @Override
+    protected String[] sourceColumns() {
+        return new String[] {"lga_code" + releaseYear, "lga_name" + releaseYear, "ste_code" + releaseYear};
+    }
+
+    @Override
+    protected Row newRow() {
+        return new LgaRow();
+    }
+
+    @Override
+    protected String getStateCode(Row row) {
+        return ((LgaRow)row).stateCode;
+    }
+
+    @Override
+    protected void setStateCode(Row row, String stateCode) {
+        ((LgaRow)row).stateCode = stateCode;
     }
 
 }
@@ -0,0 +1,162 @@
+/*
+ * Copyright (c) 2017 Peter Yuill
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package au.id.yuill.topothin.abs;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+
+/**
+ * A small HTTP endpoint on the loopback interface answering point lookups from the display
+ * tables, see PointLookup.
+ * <br>GET /lookup?lon=151.2&amp;lat=-33.9 returns one JSON object of codes by layer.
+ * <br>POST /lookup with a body of lon,lat lines returns a JSON array of objects in line order.
+ *
+ * @version 1.0
+ * @author Peter Yuill
+ */
+public class LookupServer {
+
+    public static int threads = Integer.getInteger("topothin.threads", Runtime.getRuntime().availableProcessors());
+
+    protected PointLookup lookup;
+
+    public LookupServer(PointLookup lookup) {
+        this.lookup = lookup;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if (args.length != 3 && args.length != 4) {
+            System.out.println("usage: LookupServer dbUrl dbUser dbPassword [port]");
+            System.out.println("options: -Dtopothin.threads=n (default available processors)");
+            System.exit(0);
+        }
+        int port = args.length == 4 ? Integer.parseInt(args[3]) : 8080;
+        Class.forName("org.postgresql.Driver");
+        Connection conn = DriverManager.getConnection(args[0], args[1], args[2]);
+        long start = System.currentTimeMillis();
+        PointLookup lookup = PointLookup.fromDisplayTables(conn, "poa", "lga", "sed", "ced", "ste");
+        conn.close();
+        System.out.println("Loaded: " + (System.currentTimeMillis() - start));
+
+        HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/lookup", new LookupServer(lookup)::handle);
+        server.setExecutor(Executors.newFixedThreadPool(threads));
+        server.start();
+        System.out.println("Listening on " + server.getAddress());
+    }
+
+    protected void handle(HttpExchange exchange) throws IOException {
+        try {
+            StringBuilder buf = new StringBuilder();
+            if ("GET".equals(exchange.getRequestMethod())) {
+                Map<String, String> params = parseQuery(exchange.getRequestURI().getRawQuery());
+                if (params.get("lon") == null || params.get("lat") == null) {
+                    send(exchange, 400, "{\"error\": \"lon and lat are required\"}");
+                    return;
+                }
+                appendCodes(buf, lookup.lookup(parseCoordinate(params.get("lon")),
+                        parseCoordinate(params.get("lat"))));
+            } else if ("POST".equals(exchange.getRequestMethod())) {
+                List<double[]> pointList = new ArrayList();
+                BufferedReader in = new BufferedReader(new InputStreamReader(exchange.getRequestBody(),
+                        StandardCharsets.UTF_8));
+                for (String line = in.readLine(); line != null; line = in.readLine()) {
+                    line = line.trim();
+                    if (!line.isEmpty()) {
+                        int comma = line.indexOf(',');
+                        pointList.add(new double[] {parseCoordinate(line.substring(0, comma).trim()),
+                                parseCoordinate(line.substring(comma + 1).trim())});
+                    }
+                }
+                double[] x = new double[pointList.size()];
+                double[] y = new double[pointList.size()];
+                for (int i = 0; i < x.length; i++) {
+                    x[i] = pointList.get(i)[0];
+                    y[i] = pointList.get(i)[1];
+                }
+                String[][] result = lookup.lookup(x, y);
+                buf.append('[');
+                for (int i = 0; i < result.length; i++) {
+                    buf.append(i == 0 ? "\n" : ",\n");
+                    appendCodes(buf, result[i]);
+                }
+                buf.append("\n]");
+            } else {
+                send(exchange, 405, "{\"error\": \"GET or POST only\"}");
+                return;
+            }
+            send(exchange, 200, buf.toString());
+        } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+            send(exchange, 400, "{\"error\": \"bad coordinate\"}");
+        }
+    }
+
+    /**
+     * Parse a coordinate, rejecting NaN and infinity which parseDouble accepts.
+     */
+    protected static double parseCoordinate(String value) {
+        double coordinate = Double.parseDouble(value);
+        if (Double.isNaN(coordinate) || Double.isInfinite(coordinate)) {
+            throw new NumberFormatException("Not a finite coordinate: " + value);
+        }
+        return coordinate;
+    }
+
+    protected void appendCodes(StringBuilder buf, String[] codes) {
+        buf.append('{');
+        for (int i = 0; i < codes.length; i++) {
+            buf.append(i == 0 ? "\"" : ", \"").append(lookup.getLayers().get(i)).append("\": ");
+            if (codes[i] == null) {
+                buf.append("null");
+            } else {
+                buf.append('"').append(codes[i]).append('"');
+            }
+        }
+        buf.append('}');
+    }
+
+    protected static Map<String, String> parseQuery(String query) throws IOException {
+        Map<String, String> params = new HashMap();
+        if (query != null) {
+            for (String pair: query.split("&")) {
+                int eq = pair.indexOf('=');
+                if (eq > 0) {
+                    params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"),
+                            URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+                }
+            }
+        }
+        return params;
+    }
+
+    protected static void send(HttpExchange exchange, int status, String body) throws IOException {
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().set("Content-Type", "application/json");
+        exchange.sendResponseHeaders(status, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
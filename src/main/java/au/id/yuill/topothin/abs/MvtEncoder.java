@@ -0,0 +1,172 @@
+/*
+ * Copyright (c) 2017 Peter Yuill
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package au.id.yuill.topothin.abs;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Encoder for one Mapbox Vector Tile, version 2, holding polygon features. The protocol buffer
+ * messages are written directly as only a few fields of the tile format are needed.
+ * <br><br>
+ * Rings are given as interleaved x and y tile coordinates without a closing point, already
+ * oriented as the format requires: exterior rings with positive area in the y down tile space
+ * and interior rings with negative area.
+ *
+ * @version 1.0
+ * @author Peter Yuill
+ */
+public class MvtEncoder {
+
+    public static final int EXTENT = 4096;
+
+    protected static final int MOVE_TO = 1;
+    protected static final int LINE_TO = 2;
+    protected static final int CLOSE_PATH = 7;
+    protected static final int POLYGON = 3;
+
+    protected List<Layer> layerList = new ArrayList();
+
+    public Layer layer(String name) {
+        Layer layer = new Layer(name);
+        layerList.add(layer);
+        return layer;
+    }
+
+    /**
+     * @return the encoded tile, without layers that have no features
+     */
+    public byte[] encode() {
+        Buffer tile = new Buffer();
+        for (Layer layer: layerList) {
+            if (layer.featureCount > 0) {
+                tile.writeBytes(3, layer.encode());
+            }
+        }
+        return tile.toByteArray();
+    }
+
+    public static class Layer {
+
+        protected String name;
+        protected Buffer features = new Buffer();
+        protected int featureCount;
+        protected Map<String, Integer> keyMap = new LinkedHashMap();
+        protected Map<String, Integer> valueMap = new LinkedHashMap();
+
+        protected Layer(String name) {
+            this.name = name;
+        }
+
+        /**
+         * Add a polygon feature with string attributes. Attributes with null values are left out.
+         *
+         * @param ringList the rings of all polygons, each exterior ring followed by its holes
+         */
+        public void addPolygon(String[] keys, String[] values, List<int[]> ringList) {
+            Buffer tags = new Buffer();
+            for (int i = 0; i < keys.length; i++) {
+                if (values[i] != null) {
+                    tags.writeVarint(index(keyMap, keys[i]));
+                    tags.writeVarint(index(valueMap, values[i]));
+                }
+            }
+            Buffer geometry = new Buffer();
+            int x = 0;
+            int y = 0;
+            for (int[] ring: ringList) {
+                int points = ring.length / 2;
+                geometry.writeVarint(command(MOVE_TO, 1));
+                geometry.writeVarint(zigzag(ring[0] - x));
+                geometry.writeVarint(zigzag(ring[1] - y));
+                geometry.writeVarint(command(LINE_TO, points - 1));
+                for (int i = 1; i < points; i++) {
+                    geometry.writeVarint(zigzag(ring[2 * i] - ring[2 * i - 2]));
+                    geometry.writeVarint(zigzag(ring[2 * i + 1] - ring[2 * i - 1]));
+                }
+                geometry.writeVarint(command(CLOSE_PATH, 1));
+                x = ring[ring.length - 2];
+                y = ring[ring.length - 1];
+            }
+            Buffer feature = new Buffer();
+            feature.writeBytes(2, tags.toByteArray());
+            feature.writeVarintField(3, POLYGON);
+            feature.writeBytes(4, geometry.toByteArray());
+            features.writeBytes(2, feature.toByteArray());
+            featureCount++;
+        }
+
+        protected byte[] encode() {
+            Buffer layer = new Buffer();
+            layer.writeVarintField(15, 2);
+            layer.writeString(1, name);
+            layer.write(features.toByteArray(), 0, features.size());
+            for (String key: keyMap.keySet()) {
+                layer.writeString(3, key);
+            }
+            for (String value: valueMap.keySet()) {
+                Buffer buf = new Buffer();
+                buf.writeString(1, value);
+                layer.writeBytes(4, buf.toByteArray());
+            }
+            layer.writeVarintField(5, EXTENT);
+            return layer.toByteArray();
+        }
+
+        protected static int index(Map<String, Integer> map, String value) {
+            Integer index = map.get(value);
+            if (index == null) {
+                index = map.size();
+                map.put(value, index);
+            }
+            return index;
+        }
+    }
+
+    protected static int command(int id, int count) {
+        return (id & 0x7) | (count << 3);
+    }
+
+    protected static int zigzag(int n) {
+        return (n << 1) ^ (n >> 31);
+    }
+
+    /**
+     * Protocol buffer output for the varint and length delimited wire types.
+     */
+    protected static class Buffer extends ByteArrayOutputStream {
+
+        public void writeVarint(long value) {
+            while ((value & ~0x7FL) != 0) {
+                write((int)((value & 0x7F) | 0x80));
+                value >>>= 7;
+            }
+            write((int)value);
+        }
+
+        public void writeVarintField(int field, long value) {
+            writeVarint(field << 3);
+            writeVarint(value);
+        }
+
+        public void writeBytes(int field, byte[] bytes) {
+            writeVarint((field << 3) | 2);
+            writeVarint(bytes.length);
+            write(bytes, 0, bytes.length);
+        }
+
+        public void writeString(int field, String value) {
+            writeBytes(field, value.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
@@ -0,0 +1,256 @@
+/*
+ * Copyright (c) 2017 Peter Yuill
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package au.id.yuill.topothin.abs;
+
+import au.id.yuill.topothin.Row;
+
+import org.locationtech.jts.geom.MultiPolygon;
+import org.locationtech.jts.geom.Point;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.sql.Connection;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.zip.Deflater;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Precompressed boundary payloads, so a service can send stored bytes instead of compressing the
+ * GeoJSON of a display row on every request. The payload table holds, for each display row, its
+ * geojson column compressed with gzip and brotli, and for each layer and state a GeoJSON
+ * FeatureCollection of the rows of the layer in that state, compressed the same way.
+ * <br><br>
+ * Feature payloads are keyed by layer and code, eg poa and 2000. State collections are keyed by
+ * layer with a _ste suffix and the state code, eg poa_ste and 1. A row is in the state containing
+ * its interior point. Each payload has its uncompressed size and a strong ETag for each
+ * representation: the SHA-256 hash of the uncompressed content in etag, and of the compressed bytes
+ * in gzip_etag and br_etag, so caches never confuse one encoding with another.
+ * <br><br>
+ * Payloads are compressed in parallel at the highest level, as they are compressed once and sent
+ * many times. Brotli payloads need brotli4j and its native library for the platform, which is
+ * loaded by reflection so the payloads still build where it is missing; the br column is then null
+ * and a warning is printed.
+ *
+ * @version 1.0
+ * @author Peter Yuill
+ */
+public class PayloadCache {
+
+    public static final String TABLE = "payload";
+
+    protected int threads;
+    protected Method brotli;
+    public long bytes;
+
+    public PayloadCache(int threads) {
+        this.threads = threads;
+        try {
+            Class<?> loader = Class.forName("com.aayushatharva.brotli4j.Brotli4jLoader");
+            loader.getMethod("ensureAvailability").invoke(null);
+            brotli = Class.forName("com.aayushatharva.brotli4j.encoder.Encoder").getMethod("compress", byte[].class);
+        } catch (Throwable e) {
+            brotli = null;
+            Throwable cause = e.getCause() == null ? e : e.getCause();
+            System.out.println("Warning: brotli4j not available (" + cause + "), br payloads will be null");
+        }
+    }
+
+    /**
+     * @return a cache if the topothin.payloads system property is true, otherwise null
+     */
+    public static PayloadCache fromSystemProperties(int threads) {
+        if (!Boolean.getBoolean("topothin.payloads")) {
+            return null;
+        }
+        return new PayloadCache(threads);
+    }
+
+    /**
+     * Build the payloads of the layers and replace the payload table with them.
+     *
+     * @param layerMap the thinned rows of each layer by layer name, including ste
+     * @param stateGeomMap the geometry of each state by state code
+     */
+    public void save(Connection conn, Map<String, List<Row>> layerMap, Map<String, MultiPolygon> stateGeomMap)
+            throws Exception {
+        Map<String, PreparedGeometry> stateMap = new LinkedHashMap();
+        for (Map.Entry<String, MultiPolygon> entry: stateGeomMap.entrySet()) {
+            stateMap.put(entry.getKey(), PreparedGeometryFactory.prepare(entry.getValue()));
+        }
+        List<Payload> payloadList = new ArrayList();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            for (Map.Entry<String, List<Row>> entry: layerMap.entrySet()) {
+                List<Payload> featureList = new ArrayList();
+                for (Row row: entry.getValue()) {
+                    if (row.mp != null) {
+                        featureList.add(new Payload(entry.getKey(), row));
+                    }
+                }
+                ForEachTask.forEach(pool, featureList, payload -> {
+                    payload.content = GeoJson.write(payload.row.mp);
+                    if (!payload.layer.equals("ste")) {
+                        payload.steCode = locate(payload.row.mp, stateMap);
+                    }
+                });
+                payloadList.addAll(featureList);
+                if (!entry.getKey().equals("ste")) {
+                    payloadList.addAll(collections(entry.getKey(), featureList, stateMap));
+                }
+            }
+            ForEachTask.forEach(pool, payloadList, payload -> {
+                try {
+                    payload.compress();
+                } catch (Exception e) {
+                    throw new IllegalStateException("Unable to compress payload " + payload.layer + " " + payload.code, e);
+                }
+            });
+        } finally {
+            pool.shutdown();
+        }
+
+        Statement stmt = conn.createStatement();
+        stmt.execute("create table if not exists " + TABLE + " (layer varchar(10), code varchar(20), " +
+                "etag varchar(64), size integer, gzip bytea, gzip_etag varchar(64), br bytea, br_etag varchar(64), " +
+                "primary key (layer, code))");
+        stmt.close();
+        BulkWriter bulkWriter = new BulkWriter(conn);
+        bulkWriter.copy(bulkWriter.createStaging(TABLE), "layer, code, etag, size, gzip, gzip_etag, br, br_etag", copy -> {
+            for (Payload payload: payloadList) {
+                copy.row(payload.layer, payload.code, payload.etag, payload.size, "\\x" + hex(payload.gzip),
+                        payload.gzipEtag, payload.br == null ? null : "\\x" + hex(payload.br), payload.brEtag);
+            }
+        });
+        bulkWriter.swap(TABLE);
+        bytes = bulkWriter.bytes;
+    }
+
+    /**
+     * @return the code of the state containing the interior point of the geometry, or null
+     */
+    protected static String locate(MultiPolygon mp, Map<String, PreparedGeometry> stateMap) {
+        Point point = mp.getInteriorPoint();
+        for (Map.Entry<String, PreparedGeometry> entry: stateMap.entrySet()) {
+            if (entry.getValue().covers(point)) {
+                return entry.getKey();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Build a FeatureCollection of the features of a layer in each state.
+     */
+    protected List<Payload> collections(String layer, List<Payload> featureList,
+                                        Map<String, PreparedGeometry> stateMap) {
+        Map<String, StringBuilder> bufMap = new LinkedHashMap();
+        for (String steCode: stateMap.keySet()) {
+            bufMap.put(steCode, new StringBuilder("{\"type\":\"FeatureCollection\",\"features\":["));
+        }
+        for (Payload feature: featureList) {
+            StringBuilder buf = feature.steCode == null ? null : bufMap.get(feature.steCode);
+            if (buf == null) {
+                continue;
+            }
+            if (buf.charAt(buf.length() - 1) != '[') {
+                buf.append(',');
+            }
+            buf.append("{\"type\":\"Feature\",\"id\":");
+            RunReport.appendString(buf, feature.code);
+            buf.append(",\"properties\":{\"code\":");
+            RunReport.appendString(buf, feature.code);
+            buf.append(",\"name\":");
+            RunReport.appendString(buf, feature.row.name);
+            buf.append("},\"geometry\":");
+            buf.append(feature.content);
+            buf.append('}');
+        }
+        List<Payload> collectionList = new ArrayList();
+        for (Map.Entry<String, StringBuilder> entry: bufMap.entrySet()) {
+            Payload collection = new Payload(layer + "_ste", entry.getKey());
+            collection.content = entry.getValue().append("]}").toString();
+            collectionList.add(collection);
+        }
+        return collectionList;
+    }
+
+    protected static String hex(byte[] data) {
+        StringBuilder buf = new StringBuilder(2 * data.length);
+        for (byte b: data) {
+            buf.append(Character.forDigit((b >> 4) & 0xF, 16));
+            buf.append(Character.forDigit(b & 0xF, 16));
+        }
+        return buf.toString();
+    }
+
+    /**
+     * One payload. The content is set when the payload is built and compressed later.
+     */
+    protected class Payload {
+
+        protected String layer;
+        protected String code;
+        protected Row row;
+        protected String steCode;
+        protected String content;
+        protected String etag;
+        protected String gzipEtag;
+        protected String brEtag;
+        protected int size;
+        protected byte[] gzip;
+        protected byte[] br;
+
+        protected Payload(String layer, Row row) {
+            this.layer = layer;
+            this.code = row.code;
+            this.row = row;
+        }
+
+        protected Payload(String layer, String code) {
+            this.layer = layer;
+            this.code = code;
+        }
+
+        protected void compress() throws Exception {
+            byte[] data = content.getBytes(StandardCharsets.UTF_8);
+            size = data.length;
+            MessageDigest digest = MessageDigest.getInstance("SHA-256");
+            etag = hex(digest.digest(data));
+            gzip = gzip(data);
+            gzipEtag = hex(digest.digest(gzip));
+            if (brotli != null) {
+                br = (byte[])brotli.invoke(null, (Object)data);
+                brEtag = hex(digest.digest(br));
+            }
+            content = null;
+        }
+    }
+
+    protected static byte[] gzip(byte[] data) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(data.length / 4 + 64);
+        GZIPOutputStream gzip = new GZIPOutputStream(out) {
+            {
+                def.setLevel(Deflater.BEST_COMPRESSION);
+            }
+        };
+        gzip.write(data);
+        gzip.close();
+        return out.toByteArray();
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Copyright (c) 2017 Peter Yuill
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package au.id.yuill.topothin.abs;
+
+import com.sun.management.OperatingSystemMXBean;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Measurements of one phase of a run, such as loading a table or simplifying edges. Wall time,
+ * process CPU time and peak heap are captured between start and end, and counts of rows,
+ * vertices and bytes are added by the phase as it runs. Counts may be added from several
+ * threads.
+ * <br><br>
+ * CPU time and peak heap are process wide, so phases that run concurrently each see the
+ * combined figures. Peak heap is the highest heap in use when sampled by RunReport while the
+ * phase is open, at its start and end and every SAMPLE_MILLIS between, so shorter spikes can be
+ * missed. The JVM peak usage counters are not reset, as that would lose the peaks of other open
+ * phases.
+ *
+ * @version 1.0
+ * @author Peter Yuill
+ */
+public class Phase {
+
+    public String name;
+    public String table;
+    public long startMillis;
+    public long wallNanos;
+    public long cpuNanos;
+    public long peakHeap;
+    public AtomicLong rows = new AtomicLong();
+    public AtomicLong verticesIn = new AtomicLong();
+    public AtomicLong verticesOut = new AtomicLong();
+    public AtomicLong bytes = new AtomicLong();
+    public Map<String, Long> extra = new LinkedHashMap();
+
+    protected long startNanos;
+    protected long startCpu;
+    protected AtomicLong peak = new AtomicLong();
+
+    public Phase(String name, String table) {
+        this.name = name;
+        this.table = table;
+        startMillis = System.currentTimeMillis();
+        RunReport.get().open(this);
+        startCpu = processCpuTime();
+        startNanos = System.nanoTime();
+    }
+
+    public Phase end() {
+        wallNanos = System.nanoTime() - startNanos;
+        cpuNanos = processCpuTime() - startCpu;
+        RunReport.get().close(this);
+        peakHeap = peak.get();
+        RunReport.get().add(this);
+        return this;
+    }
+
+    protected void sample(long heapUsed) {
+        peak.accumulateAndGet(heapUsed, Math::max);
+    }
+
+    public synchronized void putExtra(String key, long value) {
+        extra.put(key, value);
+    }
+
+    protected static long processCpuTime() {
+        java.lang.management.OperatingSystemMXBean os = ManagementFactory.getOperatingSystemMXBean();
+        if (os instanceof OperatingSystemMXBean) {
+            return ((OperatingSystemMXBean)os).getProcessCpuTime();
+        }
+        return 0;
+    }
+}
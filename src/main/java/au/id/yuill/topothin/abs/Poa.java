@@ -10,6 +10,8 @@ package au.id.yuill.topothin.abs;
 
 import org.locationtech.jts.geom.MultiPolygon;
 
+import java.util.List;
+
 /**
  * A holder class for the relationships between postcodes (poa) and other admin areas.
  *
@@ -22,6 +24,6 @@ public class Poa {
     public String steCode;
     public String sedCode;
     public String cedCode;
-    public double area = 0.0;
     public MultiPolygon geom;
+    public List<AdminShare> shareList;
 }
@@ -0,0 +1,255 @@
+/*
+ * Copyright (c) 2017 Peter Yuill
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package au.id.yuill.topothin.abs;
+
+import au.id.yuill.topothin.Row;
+import au.id.yuill.topothin.Table;
+import au.id.yuill.topothin.TopoCoordData;
+
+import org.locationtech.jts.algorithm.locate.IndexedPointInAreaLocator;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.Location;
+import org.locationtech.jts.geom.MultiPolygon;
+import org.locationtech.jts.geom.prep.PreparedGeometry;
+import org.locationtech.jts.geom.prep.PreparedGeometryFactory;
+import org.locationtech.jts.index.strtree.STRtree;
+import org.locationtech.jts.io.WKBReader;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.IntStream;
+
+/**
+ * In memory lookup of the admin areas containing a point, for geocoding without a database
+ * query per point. Areas are loaded from the display tables or from thinned TopoCoordData.
+ * <br><br>
+ * Each layer is split into its polygons and covered by a uniform grid. A grid cell that lies
+ * wholly within one polygon answers directly. Other cells keep the polygons that reach them,
+ * which are tested with indexed point in polygon locators. Points on a shared boundary go to the
+ * first polygon found.
+ * <br><br>
+ * Once built a lookup may be shared by multiple threads.
+ *
+ * @version 1.0
+ * @author Peter Yuill
+ */
+public class PointLookup {
+
+    /** Grid cells per layer. Most points then fall in cells covered by a single polygon. */
+    public static final int GRID_CELLS = 1 << 18;
+
+    protected List<String> layerList = new ArrayList();
+    protected List<LayerIndex> indexList = new ArrayList();
+
+    /**
+     * Load the geometry of display tables, for example poa, lga, sed, ced and ste.
+     */
+    public static PointLookup fromDisplayTables(Connection conn, String... layers) throws Exception {
+        PointLookup lookup = new PointLookup();
+        WKBReader reader = new WKBReader(AbsTable.createFactory(AbsTable.SRID));
+        Statement stmt = conn.createStatement();
+        for (String layer: layers) {
+            List<AdminArea> areaList = new ArrayList();
+            ResultSet rs = stmt.executeQuery("select " + layer + "_code, ST_AsEWKB(geom) from " + layer +
+                    "_disp where geom is not null order by " + layer + "_code");
+            while (rs.next()) {
+                AdminArea area = new AdminArea();
+                area.code = rs.getString(1);
+                area.geom = (MultiPolygon)reader.read(rs.getBytes(2));
+                areaList.add(area);
+            }
+            rs.close();
+            lookup.addLayer(layer, areaList);
+        }
+        stmt.close();
+        return lookup;
+    }
+
+    /**
+     * Use the thinned rows of each table of a TopoCoordData as a layer named after the table.
+     */
+    public static PointLookup fromTopoCoordData(TopoCoordData tcd) {
+        PointLookup lookup = new PointLookup();
+        for (Map.Entry<Table, List<Row>> entry: tcd.tableMap.entrySet()) {
+            List<AdminArea> areaList = new ArrayList();
+            for (Row row: entry.getValue()) {
+                AdminArea area = new AdminArea();
+                area.code = row.code;
+                area.geom = row.mp;
+                areaList.add(area);
+            }
+            lookup.addLayer(((AbsTable)entry.getKey()).tableName, areaList);
+        }
+        return lookup;
+    }
+
+    public void addLayer(String layer, List<? extends AdminArea> areaList) {
+        layerList.add(layer);
+        indexList.add(new LayerIndex(areaList));
+    }
+
+    public List<String> getLayers() {
+        return layerList;
+    }
+
+    /**
+     * @return the code of the area of the layer containing the point, or null if there is none
+     */
+    public String lookup(int layer, double x, double y) {
+        return indexList.get(layer).locate(x, y);
+    }
+
+    /**
+     * @return the code of the area containing the point for each layer, in layer order
+     */
+    public String[] lookup(double x, double y) {
+        String[] codes = new String[indexList.size()];
+        for (int i = 0; i < codes.length; i++) {
+            codes[i] = indexList.get(i).locate(x, y);
+        }
+        return codes;
+    }
+
+    /**
+     * Look up a batch of points in parallel.
+     *
+     * @return the codes of each point in layer order
+     */
+    public String[][] lookup(double[] x, double[] y) {
+        String[][] result = new String[x.length][];
+        IntStream.range(0, x.length).parallel().forEach(i -> result[i] = lookup(x[i], y[i]));
+        return result;
+    }
+
+    /**
+     * The polygons of one layer and the grid over them.
+     */
+    protected static class LayerIndex {
+
+        protected static final int EMPTY = -1;
+
+        protected String[] codes;
+        protected Envelope[] envelopes;
+        protected IndexedPointInAreaLocator[] locators;
+        protected double minX;
+        protected double minY;
+        protected double cellSize;
+        protected int cols;
+        protected int rows;
+        /** The covering polygon of each cell, EMPTY, or -2 - n for candidate list n. */
+        protected int[] cells;
+        protected int[][] candidates;
+
+        protected LayerIndex(List<? extends AdminArea> areaList) {
+            List<String> codeList = new ArrayList();
+            List<Geometry> partList = new ArrayList();
+            Envelope extent = new Envelope();
+            for (AdminArea area: areaList) {
+                for (int p = 0; p < area.geom.getNumGeometries(); p++) {
+                    codeList.add(area.code);
+                    partList.add(area.geom.getGeometryN(p));
+                }
+                extent.expandToInclude(area.geom.getEnvelopeInternal());
+            }
+            int count = partList.size();
+            codes = codeList.toArray(new String[count]);
+            envelopes = new Envelope[count];
+            locators = new IndexedPointInAreaLocator[count];
+            PreparedGeometry[] prepared = new PreparedGeometry[count];
+            STRtree tree = new STRtree();
+            for (int i = 0; i < count; i++) {
+                envelopes[i] = partList.get(i).getEnvelopeInternal();
+                locators[i] = new IndexedPointInAreaLocator(partList.get(i));
+                prepared[i] = PreparedGeometryFactory.prepare(partList.get(i));
+                tree.insert(envelopes[i], Integer.valueOf(i));
+            }
+            tree.build();
+
+            minX = extent.getMinX();
+            minY = extent.getMinY();
+            cellSize = Math.max(Math.sqrt(extent.getArea() / GRID_CELLS), 1.0e-9);
+            cols = (int)(extent.getWidth() / cellSize) + 1;
+            rows = (int)(extent.getHeight() / cellSize) + 1;
+            cells = new int[cols * rows];
+            int[][] cellCandidates = new int[cells.length][];
+            GeometryFactory factory = new GeometryFactory();
+            IntStream.range(0, cells.length).parallel().forEach(c -> {
+                double x = minX + (c % cols) * cellSize;
+                double y = minY + (c / cols) * cellSize;
+                Envelope env = new Envelope(x, x + cellSize, y, y + cellSize);
+                Geometry rect = factory.toGeometry(env);
+                List<Integer> hitList = new ArrayList();
+                for (Object item: tree.query(env)) {
+                    int i = (Integer)item;
+                    if (prepared[i].covers(rect)) {
+                        cells[c] = i;
+                        return;
+                    }
+                    if (prepared[i].intersects(rect)) {
+                        hitList.add(i);
+                    }
+                }
+                cells[c] = EMPTY;
+                if (!hitList.isEmpty()) {
+                    int[] hits = new int[hitList.size()];
+                    for (int h = 0; h < hits.length; h++) {
+                        hits[h] = hitList.get(h);
+                    }
+                    cellCandidates[c] = hits;
+                }
+            });
+            List<int[]> candidateList = new ArrayList();
+            for (int c = 0; c < cells.length; c++) {
+                if (cellCandidates[c] != null) {
+                    cells[c] = -2 - candidateList.size();
+                    candidateList.add(cellCandidates[c]);
+                }
+            }
+            candidates = candidateList.toArray(new int[candidateList.size()][]);
+        }
+
+        protected String locate(double x, double y) {
+            if (Double.isNaN(x) || Double.isNaN(y)) {
+                // NaN would floor to cell 0
+                return null;
+            }
+            int col = (int)Math.floor((x - minX) / cellSize);
+            int row = (int)Math.floor((y - minY) / cellSize);
+            if (col < 0 || row < 0 || col >= cols || row >= rows) {
+                return null;
+            }
+            int cell = cells[row * cols + col];
+            if (cell >= 0) {
+                return codes[cell];
+            }
+            if (cell == EMPTY) {
+                return null;
+            }
+            Coordinate point = null;
+            for (int i: candidates[-2 - cell]) {
+                if (envelopes[i].contains(x, y)) {
+                    if (point == null) {
+                        point = new Coordinate(x, y);
+                    }
+                    if (locators[i].locate(point) != Location.EXTERIOR) {
+                        return codes[i];
+                    }
+                }
+            }
+            return null;
+        }
+    }
+}
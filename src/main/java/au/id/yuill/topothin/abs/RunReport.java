@@ -0,0 +1,201 @@
+/*
+ * Copyright (c) 2017 Peter Yuill
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package au.id.yuill.topothin.abs;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
+import java.lang.reflect.Method;
+import java.nio.charset.StandardCharsets;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Collects the phases of a run. Each completed phase is emitted as a JFR event when the JVM
+ * supports Flight Recorder and PhaseEvent was built, which needs JDK 11 (see the jfr profile),
+ * and the whole run can be written as a JSON report for trending across releases. The report is
+ * written to the file named by the topothin.report system property, if set.
+ * <br><br>
+ * While any phase is open the heap in use is sampled on a daemon thread, and each open phase
+ * keeps the highest sample as its peak heap.
+ *
+ * @version 1.0
+ * @author Peter Yuill
+ */
+public class RunReport {
+
+    protected static final RunReport INSTANCE = new RunReport();
+    protected static final long SAMPLE_MILLIS = 100;
+
+    protected String program;
+    protected long startMillis = System.currentTimeMillis();
+    protected List<Phase> phaseList = new ArrayList();
+    protected Method jfrCommit;
+    protected Set<Phase> openSet = ConcurrentHashMap.newKeySet();
+    protected ScheduledExecutorService sampler;
+
+    protected RunReport() {
+        try {
+            jfrCommit = Class.forName("au.id.yuill.topothin.abs.PhaseEvent").getMethod("commit", Phase.class);
+        } catch (Throwable e) {
+            jfrCommit = null;
+        }
+    }
+
+    public static RunReport get() {
+        return INSTANCE;
+    }
+
+    public static Phase start(String name, String table) {
+        return new Phase(name, table);
+    }
+
+    /**
+     * Start sampling the heap for a phase.
+     */
+    public void open(Phase phase) {
+        openSet.add(phase);
+        phase.sample(heapUsed());
+        synchronized (this) {
+            if (sampler == null) {
+                sampler = Executors.newSingleThreadScheduledExecutor(r -> {
+                    Thread thread = new Thread(r, "heap-sampler");
+                    thread.setDaemon(true);
+                    return thread;
+                });
+                sampler.scheduleAtFixedRate(this::sample, SAMPLE_MILLIS, SAMPLE_MILLIS, TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    /**
+     * Stop sampling the heap for a phase, after a final sample.
+     */
+    public void close(Phase phase) {
+        phase.sample(heapUsed());
+        openSet.remove(phase);
+    }
+
+    protected void sample() {
+        if (!openSet.isEmpty()) {
+            long used = heapUsed();
+            for (Phase phase: openSet) {
+                phase.sample(used);
+            }
+        }
+    }
+
+    protected static long heapUsed() {
+        return ManagementFactory.getMemoryMXBean().getHeapMemoryUsage().getUsed();
+    }
+
+    public void setProgram(String program) {
+        this.program = program;
+    }
+
+    public synchronized void add(Phase phase) {
+        phaseList.add(phase);
+        if (jfrCommit != null) {
+            try {
+                jfrCommit.invoke(null, phase);
+            } catch (Exception e) {
+                jfrCommit = null;
+            }
+        }
+    }
+
+    /**
+     * Write the report to the file named by the topothin.report system property.
+     */
+    public void writeIfRequested() throws IOException {
+        String fileName = System.getProperty("topothin.report");
+        if (fileName != null) {
+            write(new File(fileName));
+        }
+    }
+
+    public synchronized void write(File file) throws IOException {
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            StringBuilder buf = new StringBuilder();
+            buf.append("{\n  \"program\": ");
+            appendString(buf, program);
+            buf.append(",\n  \"start\": ");
+            appendString(buf, isoTime(startMillis));
+            buf.append(",\n  \"wallMillis\": ");
+            buf.append(System.currentTimeMillis() - startMillis);
+            buf.append(",\n  \"maxHeap\": ");
+            buf.append(Runtime.getRuntime().maxMemory());
+            buf.append(",\n  \"processors\": ");
+            buf.append(Runtime.getRuntime().availableProcessors());
+            buf.append(",\n  \"phases\": [");
+            for (int i = 0; i < phaseList.size(); i++) {
+                Phase phase = phaseList.get(i);
+                buf.append(i == 0 ? "\n    {" : ",\n    {");
+                buf.append("\"name\": ");
+                appendString(buf, phase.name);
+                buf.append(", \"table\": ");
+                appendString(buf, phase.table);
+                buf.append(", \"start\": ");
+                appendString(buf, isoTime(phase.startMillis));
+                buf.append(", \"wallNanos\": ").append(phase.wallNanos);
+                buf.append(", \"cpuNanos\": ").append(phase.cpuNanos);
+                buf.append(", \"rows\": ").append(phase.rows.get());
+                buf.append(", \"verticesIn\": ").append(phase.verticesIn.get());
+                buf.append(", \"verticesOut\": ").append(phase.verticesOut.get());
+                buf.append(", \"bytes\": ").append(phase.bytes.get());
+                buf.append(", \"peakHeap\": ").append(phase.peakHeap);
+                for (Map.Entry<String, Long> entry: phase.extra.entrySet()) {
+                    buf.append(", ");
+                    appendString(buf, entry.getKey());
+                    buf.append(": ").append(entry.getValue());
+                }
+                buf.append('}');
+            }
+            buf.append("\n  ]\n}\n");
+            out.write(buf.toString());
+        }
+    }
+
+    protected static String isoTime(long millis) {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss.SSS'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        return format.format(new Date(millis));
+    }
+
+    protected static void appendString(StringBuilder buf, String value) {
+        if (value == null) {
+            buf.append("null");
+            return;
+        }
+        buf.append('"');
+        for (int i = 0; i < value.length(); i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                buf.append('\\').append(c);
+            } else if (c < 0x20) {
+                buf.append(String.format("\\u%04x", (int)c));
+            } else {
+                buf.append(c);
+            }
+        }
+        buf.append('"');
+    }
+}
@@ -0,0 +1,437 @@
+/*
+ * Copyright (c) 2017 Peter Yuill
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package au.id.yuill.topothin.abs;
+
+import au.id.yuill.topothin.Row;
+
+import org.locationtech.jts.algorithm.PointLocation;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.CoordinateSequence;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LinearRing;
+import org.locationtech.jts.geom.MultiPolygon;
+import org.locationtech.jts.geom.Polygon;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads ABS tables straight from the published ESRI shapefiles, so the source data does not need
+ * to be imported into the database first. The .shp and .dbf files are memory mapped and read in
+ * step, and each polygon record is passed on as its raw bytes to be decoded in parallel by the
+ * loader. Records with a null shape are skipped, as are deleted records.
+ * <br><br>
+ * The shapefile for a table is found in the source directory by the name of its source table,
+ * eg lga16.shp, or failing that by the published name, eg LGA_2016_AUST.shp, matched on the
+ * table name and release year. Columns are matched to the dbf fields by name ignoring case,
+ * which are the same names a database import gives the columns. The dbf character set is read
+ * from the .cpg file if there is one, otherwise it is taken to be ISO-8859-1.
+ * <br><br>
+ * Rings are assigned to polygons as the shapefile specification describes: clockwise rings are
+ * shells and anticlockwise rings are holes in the shell that contains them. Z and M values are
+ * ignored. Tables with an additional where clause are not supported.
+ *
+ * @version 1.0
+ * @author Peter Yuill
+ */
+public class ShapefileSource implements GeometrySource {
+
+    protected static final int NULL_SHAPE = 0;
+    protected static final int POLYGON = 5;
+    protected static final int POLYGON_Z = 15;
+    protected static final int POLYGON_M = 25;
+    protected static final int HEADER_SIZE = 100;
+    protected static final long WINDOW_SIZE = 1L << 30;
+
+    protected File dir;
+
+    public ShapefileSource(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * @return a source for the directory named by the topothin.sourceDir system property, or null
+     * if it is not set
+     */
+    public static ShapefileSource fromSystemProperties() {
+        String dirName = System.getProperty("topothin.sourceDir");
+        if (dirName == null) {
+            return null;
+        }
+        return new ShapefileSource(new File(dirName));
+    }
+
+    @Override
+    public void fetchRows(AbsTable table, AbsTable.RowSink sink) throws Exception {
+        if (table.additionalWhere != null) {
+            throw new IllegalStateException("Shapefile source cannot apply the where clause of " + table);
+        }
+        String[] columns = table.sourceColumns();
+        try (Reader reader = new Reader(file(table))) {
+            int[] fields = reader.dbf.fields(columns);
+            while (reader.next()) {
+                String[] values = new String[columns.length];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = fields[i] < 0 ? null : reader.dbf.value(fields[i]);
+                }
+                Row row = table.createRow(values);
+                row.table = table;
+                sink.accept(row, reader.shape());
+            }
+        }
+    }
+
+    @Override
+    public List<String[]> readAttributes(AbsTable table, String... columns) throws Exception {
+        List<String[]> valueList = new ArrayList();
+        try (Reader reader = new Reader(file(table))) {
+            int[] fields = reader.dbf.fields(columns);
+            while (reader.next()) {
+                String[] values = new String[columns.length];
+                for (int i = 0; i < values.length; i++) {
+                    values[i] = fields[i] < 0 ? null : reader.dbf.value(fields[i]);
+                }
+                valueList.add(values);
+            }
+        }
+        return valueList;
+    }
+
+    /**
+     * Decode a polygon record: shape type, bounding box, part count, point count, the index of
+     * the first point of each part and then the points, all little endian.
+     */
+    @Override
+    public MultiPolygon decode(byte[] bytes, GeometryFactory factory) throws Exception {
+        ByteBuffer buf = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+        int shapeType = buf.getInt(0);
+        if (shapeType != POLYGON && shapeType != POLYGON_Z && shapeType != POLYGON_M) {
+            throw new IOException("Shape type " + shapeType + " is not a polygon");
+        }
+        buf.position(36);
+        int numParts = buf.getInt();
+        int numPoints = buf.getInt();
+        int[] parts = new int[numParts + 1];
+        for (int i = 0; i < numParts; i++) {
+            parts[i] = buf.getInt();
+        }
+        parts[numParts] = numPoints;
+        int pointStart = buf.position();
+        List<LinearRing> shellList = new ArrayList();
+        List<LinearRing> holeList = new ArrayList();
+        for (int i = 0; i < numParts; i++) {
+            int size = parts[i + 1] - parts[i];
+            if (size < 4) {
+                continue;
+            }
+            CoordinateSequence seq = factory.getCoordinateSequenceFactory().create(size, 2);
+            buf.position(pointStart + 16 * parts[i]);
+            for (int c = 0; c < size; c++) {
+                seq.setOrdinate(c, CoordinateSequence.X, buf.getDouble());
+                seq.setOrdinate(c, CoordinateSequence.Y, buf.getDouble());
+            }
+            LinearRing ring = factory.createLinearRing(seq);
+            if (signedArea(seq) < 0.0) {
+                shellList.add(ring);
+            } else {
+                holeList.add(ring);
+            }
+        }
+        return assemble(shellList, holeList, factory);
+    }
+
+    /**
+     * Put each hole in the smallest shell that contains it. Holes outside every shell are taken
+     * to be shells with the wrong orientation, as some writers produce.
+     */
+    protected static MultiPolygon assemble(List<LinearRing> shellList, List<LinearRing> holeList,
+                                           GeometryFactory factory) {
+        List<List<LinearRing>> shellHoleList = new ArrayList();
+        for (int i = 0; i < shellList.size(); i++) {
+            shellHoleList.add(new ArrayList());
+        }
+        for (LinearRing hole: holeList) {
+            Envelope holeEnv = hole.getEnvelopeInternal();
+            Coordinate point = hole.getCoordinateN(0);
+            int found = -1;
+            for (int i = 0; i < shellList.size(); i++) {
+                LinearRing shell = shellList.get(i);
+                if (shell.getEnvelopeInternal().covers(holeEnv) &&
+                        PointLocation.isInRing(point, shell.getCoordinates()) &&
+                        (found < 0 || shellList.get(found).getEnvelopeInternal().covers(shell.getEnvelopeInternal()))) {
+                    found = i;
+                }
+            }
+            if (found < 0) {
+                shellList.add(hole);
+                shellHoleList.add(new ArrayList());
+            } else {
+                shellHoleList.get(found).add(hole);
+            }
+        }
+        Polygon[] polygons = new Polygon[shellList.size()];
+        for (int i = 0; i < polygons.length; i++) {
+            List<LinearRing> holes = shellHoleList.get(i);
+            polygons[i] = factory.createPolygon(shellList.get(i), holes.toArray(new LinearRing[holes.size()]));
+        }
+        return factory.createMultiPolygon(polygons);
+    }
+
+    /**
+     * @return twice the signed area of a ring, negative when the ring is clockwise
+     */
+    protected static double signedArea(CoordinateSequence seq) {
+        double sum = 0.0;
+        double x0 = seq.getX(0);
+        double y0 = seq.getY(0);
+        for (int i = 1; i < seq.size() - 1; i++) {
+            sum += (seq.getX(i) - x0) * (seq.getY(i + 1) - y0) - (seq.getX(i + 1) - x0) * (seq.getY(i) - y0);
+        }
+        return sum;
+    }
+
+    /**
+     * Find the shapefile of a table.
+     */
+    public File file(AbsTable table) throws IOException {
+        String sourceName = table.sourceName().toLowerCase();
+        String prefix = table.tableName.toLowerCase() + "_";
+        File found = null;
+        File[] files = dir.listFiles();
+        if (files != null) {
+            for (File file: files) {
+                String name = file.getName().toLowerCase();
+                if (name.equals(sourceName + ".shp")) {
+                    return file;
+                }
+                if (name.startsWith(prefix) && name.contains(table.releaseYear) && name.endsWith(".shp")) {
+                    if (found != null) {
+                        throw new IOException("More than one shapefile for " + table + " in " + dir);
+                    }
+                    found = file;
+                }
+            }
+        }
+        if (found == null) {
+            throw new IOException("No shapefile for " + table + " in " + dir);
+        }
+        return found;
+    }
+
+    @Override
+    public String toString() {
+        return dir.getPath();
+    }
+
+    /**
+     * Reads the records of a shapefile and its dbf together.
+     */
+    protected static class Reader implements AutoCloseable {
+
+        protected MappedFile shp;
+        protected Dbf dbf;
+        protected long length;
+        protected long position = HEADER_SIZE;
+        protected int recordIndex = -1;
+        protected byte[] shape;
+
+        protected Reader(File shpFile) throws IOException {
+            shp = new MappedFile(shpFile);
+            String baseName = shpFile.getPath().substring(0, shpFile.getPath().length() - 4);
+            dbf = new Dbf(sibling(baseName, ".dbf"), charset(sibling(baseName, ".cpg")));
+            ByteBuffer header = shp.slice(0, HEADER_SIZE);
+            length = (header.getInt(24) & 0xFFFFFFFFL) * 2;
+        }
+
+        /**
+         * Move to the next record that is not deleted and has a shape.
+         *
+         * @return false at the end of the file
+         */
+        protected boolean next() throws IOException {
+            while (position + 8 <= length) {
+                ByteBuffer recordHeader = shp.slice(position, 8);
+                int contentLength = recordHeader.getInt(4) * 2;
+                ByteBuffer content = shp.slice(position + 8, contentLength).order(ByteOrder.LITTLE_ENDIAN);
+                position += 8 + contentLength;
+                recordIndex++;
+                if (content.getInt(0) == NULL_SHAPE || !dbf.read(recordIndex)) {
+                    continue;
+                }
+                shape = new byte[contentLength];
+                content.get(shape);
+                return true;
+            }
+            return false;
+        }
+
+        protected byte[] shape() {
+            return shape;
+        }
+
+        @Override
+        public void close() throws IOException {
+            shp.close();
+            dbf.file.close();
+        }
+
+        protected static File sibling(String baseName, String extension) {
+            File file = new File(baseName + extension);
+            if (!file.isFile()) {
+                file = new File(baseName + extension.toUpperCase());
+            }
+            return file;
+        }
+
+        protected static Charset charset(File cpg) throws IOException {
+            if (!cpg.isFile()) {
+                return StandardCharsets.ISO_8859_1;
+            }
+            String name = new String(Files.readAllBytes(cpg.toPath()), StandardCharsets.US_ASCII).trim();
+            return name.equals("65001") ? StandardCharsets.UTF_8 : Charset.forName(name);
+        }
+    }
+
+    /**
+     * A dBase III table of fixed width text fields.
+     */
+    protected static class Dbf {
+
+        protected MappedFile file;
+        protected int recordCount;
+        protected int headerLength;
+        protected int recordLength;
+        protected List<String> nameList = new ArrayList();
+        protected List<int[]> fieldList = new ArrayList();
+        protected Charset charset;
+        protected ByteBuffer record;
+
+        protected Dbf(File dbfFile, Charset charset) throws IOException {
+            this.file = new MappedFile(dbfFile);
+            this.charset = charset;
+            ByteBuffer header = file.slice(0, 32).order(ByteOrder.LITTLE_ENDIAN);
+            recordCount = header.getInt(4);
+            headerLength = header.getShort(8) & 0xFFFF;
+            recordLength = header.getShort(10) & 0xFFFF;
+            ByteBuffer descriptors = file.slice(32, headerLength - 32);
+            int offset = 1;
+            for (int d = 0; d + 32 <= descriptors.limit() && descriptors.get(d) != 0x0D; d += 32) {
+                byte[] name = new byte[11];
+                descriptors.position(d);
+                descriptors.get(name);
+                int end = 0;
+                while (end < name.length && name[end] != 0) {
+                    end++;
+                }
+                nameList.add(new String(name, 0, end, StandardCharsets.US_ASCII).trim());
+                int fieldLength = descriptors.get(d + 16) & 0xFF;
+                fieldList.add(new int[] {offset, fieldLength});
+                offset += fieldLength;
+            }
+        }
+
+        /**
+         * @return the index of each named field, or -1 for a null name
+         */
+        protected int[] fields(String[] columns) throws IOException {
+            int[] fields = new int[columns.length];
+            for (int i = 0; i < columns.length; i++) {
+                fields[i] = -1;
+                if (columns[i] == null) {
+                    continue;
+                }
+                for (int f = 0; f < nameList.size() && fields[i] < 0; f++) {
+                    if (nameList.get(f).equalsIgnoreCase(columns[i])) {
+                        fields[i] = f;
+                    }
+                }
+                if (fields[i] < 0) {
+                    throw new IOException("No field " + columns[i] + " in dbf, found " + nameList);
+                }
+            }
+            return fields;
+        }
+
+        /**
+         * Read a record.
+         *
+         * @return false if the record is deleted
+         */
+        protected boolean read(int index) throws IOException {
+            if (index >= recordCount) {
+                throw new IOException("Shapefile has more records than its dbf");
+            }
+            record = file.slice(headerLength + (long)index * recordLength, recordLength);
+            return record.get(0) != '*';
+        }
+
+        /**
+         * @return the trimmed value of a field of the current record, or null if it is blank
+         */
+        protected String value(int field) {
+            int[] offsetLength = fieldList.get(field);
+            byte[] bytes = new byte[offsetLength[1]];
+            record.position(offsetLength[0]);
+            record.get(bytes);
+            String value = new String(bytes, charset).trim();
+            return value.isEmpty() ? null : value;
+        }
+    }
+
+    /**
+     * A read only file mapped in windows of up to a gigabyte, so files of any size can be read.
+     */
+    protected static class MappedFile {
+
+        protected RandomAccessFile raf;
+        protected FileChannel channel;
+        protected long size;
+        protected MappedByteBuffer window;
+        protected long windowStart;
+
+        protected MappedFile(File file) throws IOException {
+            raf = new RandomAccessFile(file, "r");
+            channel = raf.getChannel();
+            size = channel.size();
+        }
+
+        /**
+         * @return a big endian buffer over part of the file
+         */
+        protected ByteBuffer slice(long position, int length) throws IOException {
+            if (position < 0 || position + length > size) {
+                throw new IOException("Read past the end of a mapped file");
+            }
+            if (window == null || position < windowStart || position + length > windowStart + window.limit()) {
+                windowStart = position;
+                window = channel.map(FileChannel.MapMode.READ_ONLY, position,
+                        Math.min(size - position, Math.max(WINDOW_SIZE, length)));
+            }
+            ByteBuffer buf = window.duplicate();
+            buf.position((int)(position - windowStart));
+            buf.limit(buf.position() + length);
+            return buf.slice();
+        }
+
+        protected void close() throws IOException {
+            raf.close();
+        }
+    }
+}
@@ -0,0 +1,221 @@
+/*
+ * Copyright (c) 2017 Peter Yuill
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package au.id.yuill.topothin.abs;
+
+import au.id.yuill.topothin.Row;
+
+import org.locationtech.jts.geom.CoordinateSequence;
+import org.locationtech.jts.geom.CoordinateSequenceFactory;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.LinearRing;
+import org.locationtech.jts.geom.MultiPolygon;
+import org.locationtech.jts.geom.Polygon;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.function.Consumer;
+
+/**
+ * A local cache of decoded source rows. ABS releases are immutable, so once a table has been
+ * loaded from the database its codes, names, state codes and coordinates can be kept in a binary
+ * snapshot file and memory mapped on later runs instead of being queried and decoded again.
+ * <br><br>
+ * Snapshots are keyed by table name, release year, additional where clause, TWKB precision,
+ * snapping grid and geometry source.
+ * A snapshot is written to a temporary file and renamed into place when complete, and is only
+ * used if its header matches the key and its trailer is intact. Otherwise the table is loaded
+ * from the database and a new snapshot is written.
+ *
+ * @version 1.0
+ * @author Peter Yuill
+ */
+public class SnapshotCache {
+
+    protected static final int MAGIC = 0x544F5053;
+    protected static final int END_MAGIC = 0x454E4453;
+    protected static final int VERSION = 1;
+
+    protected File dir;
+
+    public SnapshotCache(File dir) {
+        this.dir = dir;
+    }
+
+    /**
+     * Create a cache for the directory named by the topothin.snapshotDir system property.
+     *
+     * @return the cache or null if the property is not set
+     */
+    public static SnapshotCache fromSystemProperties() {
+        String dirName = System.getProperty("topothin.snapshotDir");
+        if (dirName == null) {
+            return null;
+        }
+        return new SnapshotCache(new File(dirName));
+    }
+
+    public static String key(AbsTable table) {
+        return table.tableName + "|" + table.releaseYear + "|" + table.additionalWhere + "|" + table.twkbPrecision +
+                "|" + table.gridSnapper + "|" + table.geometrySource;
+    }
+
+    public File file(AbsTable table) {
+        return new File(dir, table.tableName + table.releaseYear + "-" +
+                Integer.toHexString(key(table).hashCode()) + ".snap");
+    }
+
+    /**
+     * Read the snapshot for a table, passing each row to the sink in the order it was loaded.
+     *
+     * @return false if there is no valid snapshot, in which case no rows have been passed on
+     */
+    public boolean read(AbsTable table, Consumer<Row> sink) throws IOException {
+        File file = file(table);
+        if (!file.isFile() || file.length() > Integer.MAX_VALUE) {
+            return false;
+        }
+        MappedByteBuffer buf;
+        try (RandomAccessFile raf = new RandomAccessFile(file, "r")) {
+            buf = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+        }
+        if (buf.limit() < 16 || buf.getInt(buf.limit() - 4) != END_MAGIC) {
+            return false;
+        }
+        int rowCount = buf.getInt(buf.limit() - 8);
+        if (buf.getInt() != MAGIC || buf.getInt() != VERSION || !key(table).equals(readString(buf))) {
+            return false;
+        }
+        GeometryFactory factory = AbsTable.createFactory(buf.getInt());
+        CoordinateSequenceFactory sequenceFactory = factory.getCoordinateSequenceFactory();
+        for (int i = 0; i < rowCount; i++) {
+            Row row = table.newRow();
+            row.table = table;
+            row.code = readString(buf);
+            row.name = readString(buf);
+            table.setStateCode(row, readString(buf));
+            Polygon[] polygons = new Polygon[buf.getInt()];
+            for (int p = 0; p < polygons.length; p++) {
+                LinearRing[] rings = new LinearRing[buf.getInt()];
+                for (int r = 0; r < rings.length; r++) {
+                    CoordinateSequence seq = sequenceFactory.create(buf.getInt(), 2);
+                    for (int c = 0; c < seq.size(); c++) {
+                        seq.setOrdinate(c, CoordinateSequence.X, buf.getDouble());
+                        seq.setOrdinate(c, CoordinateSequence.Y, buf.getDouble());
+                    }
+                    rings[r] = factory.createLinearRing(seq);
+                }
+                LinearRing[] holes = new LinearRing[rings.length - 1];
+                System.arraycopy(rings, 1, holes, 0, holes.length);
+                polygons[p] = factory.createPolygon(rings[0], holes);
+            }
+            row.mp = factory.createMultiPolygon(polygons);
+            sink.accept(row);
+        }
+        return true;
+    }
+
+    public Writer write(AbsTable table) throws IOException {
+        return new Writer(table);
+    }
+
+    protected static String readString(MappedByteBuffer buf) {
+        int length = buf.getInt();
+        if (length < 0) {
+            return null;
+        }
+        byte[] bytes = new byte[length];
+        buf.get(bytes);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Writes the snapshot of one table. Rows must be added in load order. The snapshot only
+     * becomes visible when it is committed.
+     */
+    public class Writer {
+
+        protected AbsTable table;
+        protected File temp;
+        protected DataOutputStream out;
+        protected int rowCount;
+
+        protected Writer(AbsTable table) throws IOException {
+            this.table = table;
+            dir.mkdirs();
+            temp = File.createTempFile(table.tableName + table.releaseYear, ".tmp", dir);
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temp), 65536));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            writeString(key(table));
+            out.writeInt(AbsTable.SRID);
+        }
+
+        public void add(Row row) throws IOException {
+            writeString(row.code);
+            writeString(row.name);
+            writeString(table.getStateCode(row));
+            out.writeInt(row.mp.getNumGeometries());
+            for (int p = 0; p < row.mp.getNumGeometries(); p++) {
+                Polygon polygon = (Polygon)row.mp.getGeometryN(p);
+                out.writeInt(polygon.getNumInteriorRing() + 1);
+                writeRing(polygon.getExteriorRing());
+                for (int r = 0; r < polygon.getNumInteriorRing(); r++) {
+                    writeRing(polygon.getInteriorRingN(r));
+                }
+            }
+            rowCount++;
+        }
+
+        public void commit() throws IOException {
+            out.writeInt(rowCount);
+            out.writeInt(END_MAGIC);
+            out.close();
+            Files.move(temp.toPath(), file(table).toPath(), StandardCopyOption.REPLACE_EXISTING,
+                    StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        public void discard() {
+            try {
+                out.close();
+            } catch (IOException e) {
+                // the snapshot is being thrown away
+            }
+            temp.delete();
+        }
+
+        protected void writeRing(LineString ring) throws IOException {
+            CoordinateSequence seq = ring.getCoordinateSequence();
+            out.writeInt(seq.size());
+            for (int i = 0; i < seq.size(); i++) {
+                out.writeDouble(seq.getX(i));
+                out.writeDouble(seq.getY(i));
+            }
+        }
+
+        protected void writeString(String value) throws IOException {
+            if (value == null) {
+                out.writeInt(-1);
+            } else {
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                out.writeInt(bytes.length);
+                out.write(bytes);
+            }
+        }
+    }
+}
@@ -0,0 +1,171 @@
+/*
+ * Copyright (c) 2017 Peter Yuill
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package au.id.yuill.topothin.abs;
+
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.CoordinateSequence;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.MultiPolygon;
+import org.locationtech.jts.geom.Polygon;
+import org.locationtech.jts.operation.linemerge.LineMerger;
+import org.locationtech.jts.operation.polygonize.Polygonizer;
+import org.locationtech.jts.operation.union.CascadedPolygonUnion;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Dissolve thinned LGA polygons into state polygons using their shared edge topology.
+ * <br><br>
+ * Thinned polygons that share an edge carry exactly the same vertices along it, so an edge between
+ * two LGAs of the same state appears twice and an edge on the state boundary appears once. The
+ * dissolver counts the segments of all rings of a state, keeps those that occur an odd number of
+ * times and polygonizes them. No overlay is computed, and the state boundary is made of exactly
+ * the vertices of the thinned LGA edges.
+ * <br><br>
+ * If the polygonized area does not match the total LGA area, for example because thinning left
+ * an overlap, the state falls back to a cascaded union of the LGA polygons.
+ *
+ * @version 1.0
+ * @author Peter Yuill
+ */
+public class StateDissolver {
+
+    protected static final double AREA_TOLERANCE = 1.0e-6;
+
+    protected GeometryFactory factory;
+
+    public StateDissolver(GeometryFactory factory) {
+        this.factory = factory;
+    }
+
+    /**
+     * Dissolve the LGAs of each state, processing states in parallel.
+     *
+     * @return state polygons sorted by state code
+     */
+    public Map<String, MultiPolygon> dissolveAll(Map<String, List<MultiPolygon>> stateMap, int threads) {
+        Map<String, MultiPolygon> resultMap = new ConcurrentHashMap();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        ForEachTask.forEach(pool, new ArrayList<String>(stateMap.keySet()), steCode -> {
+            resultMap.put(steCode, dissolve(steCode, stateMap.get(steCode)));
+        });
+        pool.shutdown();
+        return new TreeMap(resultMap);
+    }
+
+    public MultiPolygon dissolve(String steCode, List<MultiPolygon> mpList) {
+        Map<Segment, Integer> segmentMap = new HashMap();
+        double area = 0.0;
+        for (MultiPolygon mp: mpList) {
+            area += mp.getArea();
+            for (int p = 0; p < mp.getNumGeometries(); p++) {
+                Polygon polygon = (Polygon)mp.getGeometryN(p);
+                addRing(segmentMap, polygon.getExteriorRing());
+                for (int r = 0; r < polygon.getNumInteriorRing(); r++) {
+                    addRing(segmentMap, polygon.getInteriorRingN(r));
+                }
+            }
+        }
+        LineMerger merger = new LineMerger();
+        for (Map.Entry<Segment, Integer> entry: segmentMap.entrySet()) {
+            if ((entry.getValue() & 1) == 1) {
+                Segment s = entry.getKey();
+                merger.add(factory.createLineString(new Coordinate[] {
+                        new Coordinate(s.x0, s.y0), new Coordinate(s.x1, s.y1)}));
+            }
+        }
+        Polygonizer polygonizer = new Polygonizer(true);
+        polygonizer.add(merger.getMergedLineStrings());
+        MultiPolygon state = toMultiPolygon(polygonizer.getGeometry());
+        if (Math.abs(state.getArea() - area) > area * AREA_TOLERANCE) {
+            System.out.println(steCode + " Edge dissolve area " + state.getArea() + " expected " + area + ", using union");
+            List<Geometry> polygonList = new ArrayList();
+            for (MultiPolygon mp: mpList) {
+                for (int p = 0; p < mp.getNumGeometries(); p++) {
+                    polygonList.add(mp.getGeometryN(p));
+                }
+            }
+            state = toMultiPolygon(CascadedPolygonUnion.union(polygonList));
+        }
+        System.out.println(steCode + " Dissolved " + mpList.size() + " LGAs to " + state.getNumGeometries() + " polygons");
+        return state;
+    }
+
+    protected void addRing(Map<Segment, Integer> segmentMap, LineString ring) {
+        CoordinateSequence seq = ring.getCoordinateSequence();
+        for (int i = 1; i < seq.size(); i++) {
+            double x0 = seq.getX(i - 1);
+            double y0 = seq.getY(i - 1);
+            double x1 = seq.getX(i);
+            double y1 = seq.getY(i);
+            if (x0 != x1 || y0 != y1) {
+                segmentMap.merge(new Segment(x0, y0, x1, y1), 1, Integer::sum);
+            }
+        }
+    }
+
+    protected MultiPolygon toMultiPolygon(Geometry geom) {
+        if (geom instanceof MultiPolygon) {
+            return (MultiPolygon)geom;
+        }
+        List<Polygon> polygonList = new ArrayList();
+        for (int i = 0; i < geom.getNumGeometries(); i++) {
+            Geometry part = geom.getGeometryN(i);
+            if (part instanceof Polygon && !part.isEmpty()) {
+                polygonList.add((Polygon)part);
+            }
+        }
+        return factory.createMultiPolygon(polygonList.toArray(new Polygon[polygonList.size()]));
+    }
+
+    /**
+     * An undirected segment with its end points in a canonical order.
+     */
+    protected static class Segment {
+
+        protected double x0;
+        protected double y0;
+        protected double x1;
+        protected double y1;
+
+        protected Segment(double ax, double ay, double bx, double by) {
+            if (ax < bx || (ax == bx && ay < by)) {
+                x0 = ax; y0 = ay; x1 = bx; y1 = by;
+            } else {
+                x0 = bx; y0 = by; x1 = ax; y1 = ay;
+            }
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (!(o instanceof Segment)) {
+                return false;
+            }
+            Segment s = (Segment)o;
+            return x0 == s.x0 && y0 == s.y0 && x1 == s.x1 && y1 == s.y1;
+        }
+
+        @Override
+        public int hashCode() {
+            long h = Double.doubleToLongBits(x0);
+            h = h * 31 + Double.doubleToLongBits(y0);
+            h = h * 31 + Double.doubleToLongBits(x1);
+            h = h * 31 + Double.doubleToLongBits(y1);
+            return (int)(h ^ (h >>> 32));
+        }
+    }
+}
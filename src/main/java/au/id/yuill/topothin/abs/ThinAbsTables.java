@@ -10,32 +10,45 @@ package au.id.yuill.topothin.abs;
 
 import au.id.yuill.topothin.DefaultSimplifier;
 import au.id.yuill.topothin.Row;
-import au.id.yuill.topothin.Table;
 import au.id.yuill.topothin.TopoCoordData;
 
-import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
 import org.locationtech.jts.geom.MultiPolygon;
-import org.locationtech.jts.geom.Polygon;
-import org.locationtech.jts.geom.util.GeometryCombiner;
 import org.locationtech.jts.io.WKBReader;
 import org.locationtech.jts.io.WKBWriter;
 
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Set;
 
 /**
  * Load ABS data for postcode (poa), local government area (lga), state electoral division (sed)
  * and commonwealth electoral division (ced).
  * <br>Find nodes in all LineStrings, find edges, simplify edges, create simplified polygons
  * and save thinned geometry back to the display tables. Also create GeoJSON versions of the
- * features. Lastly create polygons for states and save them.
+ * features. Lastly dissolve the thinned LGAs into polygons for states and save them.
+ * <br><br>In incremental mode only the rows whose source geometry has changed since the last run,
+ * and the rows sharing edges with them, are thinned and rewritten along with the states that
+ * contain them. See IncrementalPlan. A snapshot cache must be cleared when the source changes.
+ * <br><br>When zoom levels are configured the thinned edges are simplified again for each level
+ * and saved with the states to per level columns. See ZoomLevels. A vector tile pyramid of all
+ * layers can also be exported, see TileExporter, as can a TopoJSON topology, see TopoJsonWriter.
+ * Precompressed payloads of the features and of the features in each state can be saved, see
+ * PayloadCache.
+ * <br><br>With a checkpoint directory a failed run resumes after thinning and skips the tables it
+ * has already saved, see Checkpoint.
  * <br><br>This program depends on BuildTables to create the display versions of admin tables.
+ * AbsPipeline does the work of both in one run.
  *
  * @version 1.0
  * @author Peter Yuill
@@ -49,6 +62,8 @@ public class ThinAbsTables {
     public static String dbUrl;
     public static String dbUser;
     public static String dbPass;
+    public static int threads = Integer.getInteger("topothin.threads", Runtime.getRuntime().availableProcessors());
+    public static boolean incremental = Boolean.getBoolean("topothin.incremental");
     public static Connection conn;
     public static Statement stmt;
 
@@ -63,76 +78,385 @@ public class ThinAbsTables {
             dbPass = args[6];
         } else {
             System.out.println("usage: ThinAbsTables poaReleaseYear lgaReleaseYear sedReleaseYear cedReleaseYear dbUrl dbUser dbPassword");
+            System.out.println("options: -Dtopothin.threads=n (default available processors)");
+            System.out.println("         -Dtopothin.incremental=true (only rethin rows changed since the last run, not with sourceDir)");
+            System.out.println("         -Dtopothin.zooms=4,8,12 (also save geometry simplified for these zoom levels)");
+            System.out.println("         -Dtopothin.tiles=dir (export vector tiles, -Dtopothin.tileMinZoom=0 -Dtopothin.tileMaxZoom=12)");
+            System.out.println("         -Dtopothin.topojson=file -Dtopothin.topojsonTable=name (export a TopoJSON topology, -Dtopothin.topojsonQuantization=1000000)");
+            System.out.println("         -Dtopothin.checkpointDir=dir (checkpoint thinned rows and saved tables, resume a failed run)");
+            System.out.println("         -Dtopothin.hilbert=true (thin and write rows in Hilbert curve order)");
+            System.out.println("         -Dtopothin.sourceDir=dir (read source tables from ABS shapefiles in dir)");
+            System.out.println("         -Dtopothin.payloads=true (save gzip and brotli payloads of features and state collections)");
+            System.out.println("         -Dtopothin.report=file (write a JSON report of run phases)");
             System.exit(0);
         }
+        if (incremental && System.getProperty("topothin.sourceDir") != null) {
+            // the incremental state update joins the LGA source table in the database
+            throw new IllegalArgumentException("topothin.incremental reads the database source, it cannot be used with topothin.sourceDir");
+        }
         Class.forName("org.postgresql.Driver");
         conn = DriverManager.getConnection(dbUrl, dbUser, dbPass);
+        RunReport.get().setProgram("ThinAbsTables");
 
-        WKBReader reader = new WKBReader();
         WKBWriter writer = new WKBWriter(2, true);
         TopoCoordData tcd = new TopoCoordData(new DefaultSimplifier(), 4283);
 
-        Table poaTable = new AbsTable(poaReleaseYear, "poa", null);
-        Table lgaTable = new LgaTable(lgaReleaseYear, null);
-        Table sedTable = new AbsTable(sedReleaseYear, "sed", null);
-        Table cedTable = new AbsTable(cedReleaseYear, "ced", null);
+        AbsTable poaTable = new AbsTable(poaReleaseYear, "poa", null);
+        AbsTable lgaTable = new LgaTable(lgaReleaseYear, null);
+        AbsTable sedTable = new AbsTable(sedReleaseYear, "sed", null);
+        AbsTable cedTable = new AbsTable(cedReleaseYear, "ced", null);
+        List<AbsTable> tableList = Arrays.asList(poaTable, lgaTable, sedTable, cedTable);
+
+        List<Row> sourceList = new ArrayList();
+        ConcurrentLoader loader = new ConcurrentLoader(dbUrl, dbUser, dbPass, threads);
+        loader.load(tableList, sourceList::add);
+        Map<String, Long> fingerprintMap = Fingerprints.of(sourceList);
+
+        IncrementalPlan plan = null;
+        if (incremental) {
+            plan = new IncrementalPlan(sourceList, fingerprintMap, Fingerprints.load(conn));
+            for (String key: plan.removedList) {
+                System.out.println(key + " no longer in source, rerun BuildTables to remove it");
+            }
+            System.out.println("Changed " + plan.changedSet.size() + " rewrite " + plan.rewriteSet.size() +
+                    " thin " + plan.thinSet.size() + " of " + sourceList.size());
+            if (plan.changedSet.isEmpty()) {
+                conn.close();
+                RunReport.get().writeIfRequested();
+                return;
+            }
+            sourceList = plan.thinRows();
+        }
+        sourceList = HilbertOrder.sortIfEnabled(sourceList);
+        Checkpoint checkpoint = Checkpoint.fromSystemProperties(sourceList, fingerprintMap);
+        if (checkpoint == null || !checkpoint.readThinned(tableList, tcd)) {
+            thin(tcd, sourceList);
+            if (checkpoint != null) {
+                checkpoint.writeThinned(tableList, tcd);
+            }
+        }
+        sourceList = null;
+
+        ZoomLevels levels = simplifyLevels(conn, tableList, tcd);
 
-        poaTable.populateTopoCoordData(conn, reader, tcd);
-        lgaTable.populateTopoCoordData(conn, reader, tcd);
-        sedTable.populateTopoCoordData(conn, reader, tcd);
-        cedTable.populateTopoCoordData(conn, reader, tcd);
+        for (AbsTable table: tableList) {
+            if (checkpoint != null && checkpoint.isDone("save " + table.tableName)) {
+                System.out.println("Save " + table.tableName + " already committed");
+                continue;
+            }
+            if (plan == null) {
+                table.saveThinnedGeometry(conn, writer, tcd, levels);
+            } else {
+                table.updateThinnedGeometry(conn, writer, plan.rewriteRows(tcd.tableMap.get(table)), levels);
+            }
+            if (checkpoint != null) {
+                checkpoint.done("save " + table.tableName);
+            }
+        }
+
+        System.out.println("Create States");
+        List<Row> lgaList = tcd.tableMap.get(lgaTable);
+        if (plan != null) {
+            lgaList = plan.rewriteRows(lgaList);
+        }
+        List<Map<String, MultiPolygon>> stateGeomMapList = dissolveStates(lgaList, levels, tcd.factory, plan != null);
+        if (checkpoint != null && checkpoint.isDone("save ste")) {
+            System.out.println("Save ste already committed");
+        } else {
+            List<String> suffixList = AbsTable.suffixList(levels);
+            Phase phase = RunReport.start("save", "ste");
+            List<String[]> geomList = encodeStates(stateGeomMapList, writer);
+            BulkWriter bulkWriter = new BulkWriter(conn);
+            if (plan == null) {
+                bulkWriter.replaceGeometry("ste_disp", "ste_code", suffixList, geomList);
+            } else {
+                bulkWriter.updateGeometry("ste_disp", "ste_code", suffixList, geomList);
+            }
+            phase.rows.set(geomList.size());
+            phase.bytes.set(bulkWriter.bytes);
+            phase.end();
+            if (checkpoint != null) {
+                checkpoint.done("save ste");
+            }
+        }
+
+        TileExporter exporter = TileExporter.fromSystemProperties(tcd.factory, threads);
+        if (exporter != null && plan != null) {
+            System.out.println("Tile export needs all rows, skipped in incremental mode");
+        } else if (exporter != null) {
+            exportTiles(exporter, tableList, tcd, stateGeomMapList.get(0));
+        }
+        TopoJsonWriter topoJson = TopoJsonWriter.fromSystemProperties();
+        if (topoJson != null && plan != null) {
+            System.out.println("TopoJSON export needs all rows, skipped in incremental mode");
+        } else if (topoJson != null) {
+            exportTopoJson(conn, topoJson, tableList, tcd, stateGeomMapList.get(0));
+        }
+        PayloadCache payloads = PayloadCache.fromSystemProperties(threads);
+        if (payloads != null && plan != null) {
+            System.out.println("Payloads need all rows, skipped in incremental mode");
+        } else if (payloads != null) {
+            savePayloads(conn, payloads, tableList, tcd, stateGeomMapList.get(0));
+        }
+        Fingerprints.save(conn, fingerprintMap);
+        if (checkpoint != null) {
+            checkpoint.clear();
+        }
+        conn.close();
+        RunReport.get().writeIfRequested();
+    }
+
+    /**
+     * Add the source rows to the TopoCoordData and thin them. The thinned geometry replaces the
+     * source geometry of each row.
+     */
+    public static void thin(TopoCoordData tcd, List<Row> sourceList) {
+        long vertices = 0;
+        for (Row row: sourceList) {
+            tcd.addRow(row);
+            vertices += row.mp.getNumPoints();
+        }
+        int rows = sourceList.size();
 
         System.out.println("Find nodes");
+        Phase phase = RunReport.start("findNodes", null);
         tcd.findNodes();
+        endThinPhase(phase, rows, vertices);
 
         System.out.println("Create Edges");
+        phase = RunReport.start("createEdges", null);
         tcd.createEdges();
+        endThinPhase(phase, rows, vertices);
 
         System.out.println("Simplify Edges");
+        phase = RunReport.start("simplifyEdges", null);
         tcd.simplifyEdges();
+        endThinPhase(phase, rows, vertices);
 
         System.out.println("Reassemble Polygons");
+        phase = RunReport.start("createThinnedPolygons", null);
         tcd.createThinnedPolygons();
+        for (List<Row> rowList: tcd.tableMap.values()) {
+            for (Row row: rowList) {
+                phase.verticesOut.addAndGet(row.mp.getNumPoints());
+            }
+        }
+        endThinPhase(phase, rows, vertices);
+    }
+
+    /**
+     * Simplify the thinned rows of the tables for each configured zoom level, adding the level
+     * columns to the display tables if needed.
+     *
+     * @return the zoom levels, or null if none are configured
+     */
+    public static ZoomLevels simplifyLevels(Connection conn, List<AbsTable> tableList, TopoCoordData tcd)
+            throws Exception {
+        ZoomLevels levels = ZoomLevels.fromSystemProperties();
+        if (levels == null) {
+            return null;
+        }
+        System.out.println("Simplify Zoom Levels");
+        Phase phase = RunReport.start("zoomLevels", null);
+        List<Row> thinnedList = new ArrayList();
+        for (AbsTable table: tableList) {
+            thinnedList.addAll(tcd.tableMap.get(table));
+            for (String suffix: levels.suffixList()) {
+                new BulkWriter(conn).addGeometryColumns(table.tableName + "_disp", suffix, AbsTable.SRID);
+            }
+        }
+        for (String suffix: levels.suffixList()) {
+            new BulkWriter(conn).addGeometryColumns("ste_disp", suffix, AbsTable.SRID);
+        }
+        levels.simplify(thinnedList, tcd.factory, threads);
+        phase.rows.set(thinnedList.size());
+        for (Row row: thinnedList) {
+            phase.verticesIn.addAndGet(row.mp.getNumPoints());
+            for (MultiPolygon mp: levels.levelMap.get(row)) {
+                if (mp != null) {
+                    phase.verticesOut.addAndGet(mp.getNumPoints());
+                }
+            }
+        }
+        phase.end();
+        return levels;
+    }
 
-        poaTable.saveThinnedGeometry(conn, writer, tcd);
-        lgaTable.saveThinnedGeometry(conn, writer, tcd);
-        sedTable.saveThinnedGeometry(conn, writer, tcd);
-        cedTable.saveThinnedGeometry(conn, writer, tcd);
+    /**
+     * Dissolve thinned LGAs into states, once for the default thinning and once for each zoom
+     * level. If addSaved is true the saved geometry of LGAs that were not thinned is added.
+     *
+     * @return a map of state code to geometry for the default thinning and each zoom level
+     */
+    public static List<Map<String, MultiPolygon>> dissolveStates(List<Row> lgaList, ZoomLevels levels,
+                                                                 GeometryFactory factory, boolean addSaved)
+            throws Exception {
+        List<String> suffixList = AbsTable.suffixList(levels);
+        List<Map<String, List<MultiPolygon>>> stateMapList = new ArrayList();
+        for (int r = 0; r < suffixList.size(); r++) {
+            Map<String, List<MultiPolygon>> stateMap = new HashMap();
+            for (Row row: lgaList) {
+                LgaRow lga = (LgaRow)row;
+                List<MultiPolygon> stateList = stateMap.get(lga.stateCode);
+                if (stateList == null) {
+                    stateList = new ArrayList();
+                    stateMap.put(lga.stateCode, stateList);
+                }
+                MultiPolygon mp = levels == null ? lga.mp : levels.geometries(lga)[r];
+                if (mp != null) {
+                    stateList.add(mp);
+                }
+            }
+            if (addSaved) {
+                addSavedLgas(stateMap, lgaList, suffixList.get(r));
+            }
+            stateMapList.add(stateMap);
+        }
 
-        System.out.println("Create States");
-        PreparedStatement ps = conn.prepareStatement("update ste_disp set geom = ? where ste_code = ?");
+        Phase phase = RunReport.start("dissolve", "ste");
+        for (List<MultiPolygon> stateList: stateMapList.get(0).values()) {
+            for (MultiPolygon mp: stateList) {
+                phase.verticesIn.addAndGet(mp.getNumPoints());
+            }
+        }
+        StateDissolver dissolver = new StateDissolver(factory);
+        List<Map<String, MultiPolygon>> stateGeomMapList = new ArrayList();
+        for (Map<String, List<MultiPolygon>> stateMap: stateMapList) {
+            stateGeomMapList.add(dissolver.dissolveAll(stateMap, threads));
+        }
+        for (MultiPolygon mp: stateGeomMapList.get(0).values()) {
+            phase.verticesOut.addAndGet(mp.getNumPoints());
+        }
+        phase.rows.set(stateGeomMapList.get(0).size());
+        phase.end();
+        return stateGeomMapList;
+    }
 
-        List<Row> lgaList = tcd.tableMap.get(lgaTable);
-        Map<String, List<LgaRow>> stateMap = new HashMap();
-        for (Row row: lgaList) {
-            LgaRow lga = (LgaRow)row;
-            List<LgaRow> stateList = stateMap.get(lga.stateCode);
-            if (stateList == null) {
-                stateList = new ArrayList();
-                stateMap.put(lga.stateCode, stateList);
+    /**
+     * @return the code followed by GeoJSON and hex EWKB geometry for the default thinning and
+     * each zoom level of each state
+     */
+    public static List<String[]> encodeStates(List<Map<String, MultiPolygon>> stateGeomMapList, WKBWriter writer) {
+        List<String[]> geomList = new ArrayList();
+        for (String steCode: stateGeomMapList.get(0).keySet()) {
+            MultiPolygon[] geoms = new MultiPolygon[stateGeomMapList.size()];
+            String[] geoJson = new String[geoms.length];
+            for (int r = 0; r < geoms.length; r++) {
+                geoms[r] = stateGeomMapList.get(r).get(steCode);
+                geoJson[r] = geoms[r] == null ? null : GeoJson.write(geoms[r]);
             }
-            stateList.add(lga);
+            geomList.add(AbsTable.encode(steCode, geoms, geoJson, writer));
         }
+        return geomList;
+    }
 
+    /**
+     * Export a vector tile pyramid of the thinned tables and the dissolved states.
+     */
+    public static void exportTiles(TileExporter exporter, List<AbsTable> tableList, TopoCoordData tcd,
+                                   Map<String, MultiPolygon> stateGeomMap) throws Exception {
+        System.out.println("Export Tiles");
+        Phase phase = RunReport.start("tiles", null);
+        exporter.export(layerMap(tableList, tcd, stateGeomMap));
+        phase.rows.set(exporter.tileCount.get());
+        phase.bytes.set(exporter.bytes.get());
+        phase.end();
+    }
+
+    /**
+     * Export a TopoJSON topology of the thinned tables and the dissolved states.
+     */
+    public static void exportTopoJson(Connection conn, TopoJsonWriter topoJson, List<AbsTable> tableList,
+                                      TopoCoordData tcd, Map<String, MultiPolygon> stateGeomMap) throws Exception {
+        System.out.println("Export TopoJSON");
+        Phase phase = RunReport.start("topojson", null);
+        Map<String, List<Row>> layerMap = layerMap(tableList, tcd, stateGeomMap);
+        topoJson.export(conn, layerMap);
+        for (List<Row> rowList: layerMap.values()) {
+            phase.rows.addAndGet(rowList.size());
+        }
+        phase.bytes.set(topoJson.bytes);
+        phase.end();
+    }
+
+    /**
+     * Save precompressed payloads of the thinned tables and the dissolved states.
+     */
+    public static void savePayloads(Connection conn, PayloadCache payloads, List<AbsTable> tableList,
+                                    TopoCoordData tcd, Map<String, MultiPolygon> stateGeomMap) throws Exception {
+        System.out.println("Save Payloads");
+        Phase phase = RunReport.start("save", PayloadCache.TABLE);
+        Map<String, List<Row>> layerMap = layerMap(tableList, tcd, stateGeomMap);
+        payloads.save(conn, layerMap, stateGeomMap);
+        for (List<Row> rowList: layerMap.values()) {
+            phase.rows.addAndGet(rowList.size());
+        }
+        phase.bytes.set(payloads.bytes);
+        phase.end();
+    }
+
+    /**
+     * @return the thinned rows of each table and the dissolved states, by table name
+     */
+    protected static Map<String, List<Row>> layerMap(List<AbsTable> tableList, TopoCoordData tcd,
+                                                     Map<String, MultiPolygon> stateGeomMap) {
+        Map<String, List<Row>> layerMap = new LinkedHashMap();
+        for (AbsTable table: tableList) {
+            layerMap.put(table.tableName, tcd.tableMap.get(table));
+        }
+        List<Row> stateList = new ArrayList();
+        for (Map.Entry<String, MultiPolygon> entry: stateGeomMap.entrySet()) {
+            Row state = new Row();
+            state.code = entry.getKey();
+            state.mp = entry.getValue();
+            stateList.add(state);
+        }
+        layerMap.put("ste", stateList);
+        return layerMap;
+    }
+
+    protected static void endThinPhase(Phase phase, int rows, long vertices) {
+        phase.rows.set(rows);
+        phase.verticesIn.set(vertices);
+        phase.end();
+    }
+
+    /**
+     * Add the saved thinned geometry of the LGAs that were not thinned in this run to the states
+     * that need rebuilding, reading the geom column with the given zoom level suffix.
+     */
+    public static void addSavedLgas(Map<String, List<MultiPolygon>> stateMap, List<Row> thinnedList, String suffix)
+            throws Exception {
+        StringBuilder buf = new StringBuilder();
+        buf.append("select d.lga_code, ST_AsEWKB(d.geom");
+        buf.append(suffix);
+        buf.append(") from lga_disp d join lga");
+        buf.append(lgaReleaseYear);
+        buf.append(" s on s.lga_code");
+        buf.append(lgaReleaseYear);
+        buf.append(" = d.lga_code where d.geom");
+        buf.append(suffix);
+        buf.append(" is not null and s.ste_code");
+        buf.append(lgaReleaseYear);
+        buf.append(" = ?");
+        PreparedStatement ps = conn.prepareStatement(buf.toString());
+        WKBReader reader = new WKBReader(AbsTable.createFactory(AbsTable.SRID));
         for (String steCode: stateMap.keySet()) {
-            List<MultiPolygon> mpList = new ArrayList();
-            for (LgaRow lgaRow: stateMap.get(steCode)) {
-                mpList.add(lgaRow.mp);
-            }
-            Geometry comb = GeometryCombiner.combine(mpList);
-            System.out.println(steCode + " Combined " + comb.getClass().getName() + " " + comb.getSRID() + " " + comb.getNumGeometries());
-            Geometry state = comb.buffer(0.0);
-            System.out.println(steCode + " Buffer " + state.getClass().getName() + " " + state.getSRID() + " " + state.getNumGeometries());
-            if (state instanceof Polygon) {
-                state = new MultiPolygon(new Polygon[] {(Polygon)state}, tcd.factory);
-            }
-            ps.setBytes(1, writer.write(state));
-            ps.setString(2, steCode);
-            ps.execute();
-        }
-        Statement stmt = conn.createStatement();
-        stmt.execute("update ste_disp set geojson = ST_AsGeoJSON(geom,6,0) where geom is not null");
-        stmt.close();
-        conn.close();
+            Set<String> thinnedCodes = new HashSet();
+            for (Row row: thinnedList) {
+                if (steCode.equals(((LgaRow)row).stateCode)) {
+                    thinnedCodes.add(row.code);
+                }
+            }
+            ps.setString(1, steCode);
+            ResultSet rs = ps.executeQuery();
+            while(rs.next()) {
+                if (!thinnedCodes.contains(rs.getString(1))) {
+                    stateMap.get(steCode).add((MultiPolygon)reader.read(rs.getBytes(2)));
+                }
+            }
+            rs.close();
+        }
+        ps.close();
     }
 }
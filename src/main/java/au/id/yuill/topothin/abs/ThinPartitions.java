@@ -0,0 +1,276 @@
+/*
+ * Copyright (c) 2017 Peter Yuill
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package au.id.yuill.topothin.abs;
+
+import au.id.yuill.topothin.DefaultSimplifier;
+import au.id.yuill.topothin.Row;
+import au.id.yuill.topothin.TopoCoordData;
+
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.MultiPolygon;
+import org.locationtech.jts.io.WKBWriter;
+
+import java.io.File;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Thin layers too large for one TopoCoordData, such as SA1 and Mesh Blocks, one state at a
+ * time. Each state partition loads its own rows of every layer along with the rows of every layer
+ * of other states that touch them, and is thinned independently. Every row belongs to exactly
+ * one partition, see AsgsTable. Partitions run in parallel and their
+ * thinned rows are spilled to snapshot files, so only the partitions in progress are held in
+ * memory.
+ * <br><br>
+ * Edges along state borders are thinned in both neighbouring partitions. The first partition to
+ * finish a border edge publishes it and every other partition stitches its rows to the published
+ * edge, so neighbouring partitions match exactly whatever each thinning produced. Edges are
+ * recovered from the thinned rows as in ArcTopology and identified by their end points and the
+ * rows that share them.
+ * <br><br>
+ * On save the spilled partitions of each layer are streamed into the display table, which is
+ * created for layers that BuildTables does not create. States are not dissolved, see
+ * ThinAbsTables.
+ *
+ * @version 1.0
+ * @author Peter Yuill
+ */
+public class ThinPartitions {
+
+    public static String releaseYear;
+    public static String dbUrl;
+    public static String dbUser;
+    public static String dbPass;
+    public static int threads = Integer.getInteger("topothin.threads", Runtime.getRuntime().availableProcessors());
+    public static int partitionThreads = Integer.getInteger("topothin.partitionThreads", 2);
+    public static File spillDir = new File(System.getProperty("topothin.spillDir",
+            new File(System.getProperty("java.io.tmpdir"), "topothin-spill").getPath()));
+
+    public static void main(String[] args) throws Exception {
+        if (args.length >= 5) {
+            releaseYear = args[0];
+            dbUrl = args[1];
+            dbUser = args[2];
+            dbPass = args[3];
+        } else {
+            System.out.println("usage: ThinPartitions releaseYear dbUrl dbUser dbPassword layer [layer...]");
+            System.out.println("layers: poa lga sed ced sa1 mb");
+            System.out.println("options: -Dtopothin.threads=n (default available processors)");
+            System.out.println("         -Dtopothin.partitionThreads=n (states thinned at once, default 2)");
+            System.out.println("         -Dtopothin.spillDir=dir (default java.io.tmpdir/topothin-spill)");
+            System.out.println("         -Dtopothin.hilbert=true (thin and write rows in Hilbert curve order)");
+            System.out.println("         -Dtopothin.report=file (write a JSON report of run phases)");
+            System.exit(0);
+        }
+        Class.forName("org.postgresql.Driver");
+        Connection conn = DriverManager.getConnection(dbUrl, dbUser, dbPass);
+        RunReport.get().setProgram("ThinPartitions");
+
+        List<AsgsTable> layerList = new ArrayList();
+        for (int i = 4; i < args.length; i++) {
+            AsgsTable layer = AsgsTable.forLayer(args[i], releaseYear);
+            layer.createDisplayTable(conn);
+            layerList.add(layer);
+            List<String> uncontainedList = layer.uncontainedCodes(conn);
+            if (!uncontainedList.isEmpty()) {
+                System.out.println(layer.tableName + " rows outside every LGA, given the state of the nearest LGA: " +
+                        uncontainedList);
+            }
+        }
+        List<String> partitionList = AsgsTable.partitionCodes(conn, releaseYear);
+        SnapshotCache spill = new SnapshotCache(new File(spillDir, "thinned"));
+        Map<String, Coordinate[]> borderMap = new ConcurrentHashMap();
+
+        ExecutorService pool = Executors.newFixedThreadPool(partitionThreads);
+        try {
+            List<Future<?>> futureList = new ArrayList();
+            for (String partition: partitionList) {
+                futureList.add(pool.submit(() -> {
+                    thinPartition(partition, layerList, spill, borderMap);
+                    return null;
+                }));
+            }
+            for (Future<?> future: futureList) {
+                future.get();
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+
+        WKBWriter writer = new WKBWriter(2, true);
+        for (AsgsTable layer: layerList) {
+            save(conn, writer, layer, layerList, partitionList, spill);
+        }
+        conn.close();
+        RunReport.get().writeIfRequested();
+    }
+
+    /**
+     * Load, thin and stitch one state partition, and spill its own rows of each layer.
+     */
+    public static void thinPartition(String partition, List<AsgsTable> layerList, SnapshotCache spill,
+                                     Map<String, Coordinate[]> borderMap) throws Exception {
+        List<AbsTable> tableList = new ArrayList();
+        for (AsgsTable layer: layerList) {
+            tableList.add(layer.partition(partition, layerList));
+        }
+        Phase phase = RunReport.start("partition", partition);
+        TopoCoordData tcd = new TopoCoordData(new DefaultSimplifier(), AbsTable.SRID);
+        List<Row> rowList = new ArrayList();
+        new ConcurrentLoader(dbUrl, dbUser, dbPass, threads).load(tableList, row -> {
+            rowList.add(row);
+            phase.verticesIn.addAndGet(row.mp.getNumPoints());
+        });
+        for (Row row: HilbertOrder.sortIfEnabled(rowList)) {
+            tcd.addRow(row);
+        }
+        System.out.println("Thin partition " + partition + ": " + rowList.size() + " rows");
+        tcd.findNodes();
+        tcd.createEdges();
+        tcd.simplifyEdges();
+        tcd.createThinnedPolygons();
+
+        rowList.clear();
+        for (AbsTable table: tableList) {
+            rowList.addAll(tcd.tableMap.get(table));
+        }
+        int stitched = stitch(partition, rowList, tcd, borderMap);
+        System.out.println("Stitched partition " + partition + ": " + stitched + " rows");
+
+        for (AbsTable table: tableList) {
+            SnapshotCache.Writer snapshot = spill.write(table);
+            try {
+                for (Row row: tcd.tableMap.get(table)) {
+                    if (((AsgsTable)table).isOwned(row)) {
+                        snapshot.add(row);
+                        phase.rows.incrementAndGet();
+                        phase.verticesOut.addAndGet(row.mp.getNumPoints());
+                    }
+                }
+                snapshot.commit();
+            } catch (Exception e) {
+                snapshot.discard();
+                throw e;
+            }
+        }
+        phase.putExtra("stitched", stitched);
+        phase.end();
+    }
+
+    /**
+     * Stitch the thinned rows of a partition to the border edges already published by other
+     * partitions, and publish the border edges not yet seen.
+     *
+     * @return the number of own rows rebuilt from published edges
+     */
+    protected static int stitch(String partition, List<Row> rowList, TopoCoordData tcd,
+                                Map<String, Coordinate[]> borderMap) {
+        ArcTopology topology = new ArcTopology(rowList);
+        List<List<Integer>> userList = new ArrayList();
+        for (int a = 0; a < topology.arcList.size(); a++) {
+            userList.add(new ArrayList());
+        }
+        for (int i = 0; i < rowList.size(); i++) {
+            for (int[][] polygon: topology.geometryList.get(i)) {
+                for (int[] ring: polygon) {
+                    for (int ref: ring) {
+                        List<Integer> users = userList.get(ref < 0 ? ~ref : ref);
+                        if (!users.contains(i)) {
+                            users.add(i);
+                        }
+                    }
+                }
+            }
+        }
+        List<Coordinate[]> arcList = new ArrayList(topology.arcList);
+        boolean[] changed = new boolean[rowList.size()];
+        for (int a = 0; a < arcList.size(); a++) {
+            List<Integer> users = userList.get(a);
+            boolean own = false;
+            boolean other = false;
+            List<String> keyList = new ArrayList();
+            for (int i: users) {
+                Row row = rowList.get(i);
+                if (partition.equals(((LgaRow)row).stateCode)) {
+                    own = true;
+                } else {
+                    other = true;
+                }
+                keyList.add(((AbsTable)row.table).tableName + ":" + row.code);
+            }
+            if (!own || !other) {
+                continue;
+            }
+            Coordinate[] arc = arcList.get(a);
+            keyList.sort(null);
+            String key = arc[0].x + "," + arc[0].y + "|" + arc[arc.length - 1].x + "," + arc[arc.length - 1].y +
+                    "|" + keyList;
+            Coordinate[] published = borderMap.putIfAbsent(key, arc);
+            if (published != null && !Arrays.equals(published, arc)) {
+                arcList.set(a, published);
+                for (int i: users) {
+                    changed[i] = true;
+                }
+            }
+        }
+        int count = 0;
+        for (int i = 0; i < rowList.size(); i++) {
+            Row row = rowList.get(i);
+            if (changed[i] && partition.equals(((LgaRow)row).stateCode)) {
+                MultiPolygon mp = topology.build(i, arcList, tcd.factory);
+                if (mp != null) {
+                    row.mp = mp;
+                    count++;
+                }
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Stream the spilled partitions of a layer into its display table and remove the spill files.
+     */
+    public static void save(Connection conn, WKBWriter writer, AsgsTable layer, List<AsgsTable> layerList,
+                            List<String> partitionList, SnapshotCache spill) throws Exception {
+        System.out.print("Save " + layer.tableName + " ");
+        Phase phase = RunReport.start("save", layer.tableName);
+        BulkWriter bulkWriter = new BulkWriter(conn);
+        bulkWriter.replaceGeometry(layer.tableName + "_disp", layer.tableName + "_code", Arrays.asList(""), copy -> {
+            for (String partition: partitionList) {
+                AsgsTable table = layer.partition(partition, layerList);
+                boolean found = spill.read(table, row -> {
+                    try {
+                        copy.row(row.code, GeoJson.write(row.mp), WKBWriter.toHex(writer.write(row.mp)));
+                    } catch (Exception e) {
+                        throw new IllegalStateException("Unable to copy " + row.code, e);
+                    }
+                    phase.rows.incrementAndGet();
+                    if ((phase.rows.get() % 1000) == 0) {
+                        System.out.print("*");
+                    }
+                });
+                if (!found) {
+                    throw new IllegalStateException("Missing spill for " + layer.tableName + " partition " + partition);
+                }
+                spill.file(table).delete();
+            }
+        });
+        System.out.println("*");
+        phase.bytes.set(bulkWriter.bytes);
+        phase.end();
+    }
+}
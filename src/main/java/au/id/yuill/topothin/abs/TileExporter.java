@@ -0,0 +1,361 @@
+/*
+ * Copyright (c) 2017 Peter Yuill
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package au.id.yuill.topothin.abs;
+
+import au.id.yuill.topothin.Row;
+
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LineString;
+import org.locationtech.jts.geom.MultiPolygon;
+import org.locationtech.jts.geom.Polygon;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Export thinned layers as a Mapbox Vector Tile pyramid in a directory of z/x/y.mvt files, with
+ * a TileJSON metadata.json describing the layers.
+ * <br><br>
+ * The arc topology of all features is built once. For each zoom the arcs are simplified to one
+ * screen pixel, so neighbouring features keep their shared edges, and the features are rebuilt
+ * and projected to Web Mercator. Each tile then clips, quantises and encodes the features that
+ * reach it, with tiles processed in parallel.
+ * <br><br>
+ * Export is configured with the topothin.tiles system property naming the output directory,
+ * and topothin.tileMinZoom and topothin.tileMaxZoom (default 0 and 12).
+ *
+ * @version 1.0
+ * @author Peter Yuill
+ */
+public class TileExporter {
+
+    /** Tile coordinates clipped beyond each edge so renderers do not draw seams. */
+    public static final int BUFFER = 64;
+    public static final double MAX_LATITUDE = 85.0511287798;
+
+    protected File dir;
+    protected int minZoom;
+    protected int maxZoom;
+    protected GeometryFactory factory;
+    protected int threads;
+    public AtomicLong tileCount = new AtomicLong();
+    public AtomicLong bytes = new AtomicLong();
+
+    public TileExporter(File dir, int minZoom, int maxZoom, GeometryFactory factory, int threads) {
+        this.dir = dir;
+        this.minZoom = minZoom;
+        this.maxZoom = maxZoom;
+        this.factory = factory;
+        this.threads = threads;
+    }
+
+    /**
+     * @return an exporter configured from system properties, or null if topothin.tiles is not set
+     */
+    public static TileExporter fromSystemProperties(GeometryFactory factory, int threads) {
+        String dirName = System.getProperty("topothin.tiles");
+        if (dirName == null) {
+            return null;
+        }
+        return new TileExporter(new File(dirName), Integer.getInteger("topothin.tileMinZoom", 0),
+                Integer.getInteger("topothin.tileMaxZoom", 12), factory, threads);
+    }
+
+    /**
+     * Export layers of rows. The code and name of each row are written as feature attributes,
+     * and layers are written to tiles in map order.
+     */
+    public void export(Map<String, List<Row>> layerMap) throws Exception {
+        List<String> layerNames = new ArrayList(layerMap.keySet());
+        List<Row> rowList = new ArrayList();
+        List<Integer> layerIndexList = new ArrayList();
+        Envelope bounds = new Envelope();
+        for (int i = 0; i < layerNames.size(); i++) {
+            for (Row row: layerMap.get(layerNames.get(i))) {
+                rowList.add(row);
+                layerIndexList.add(i);
+                bounds.expandToInclude(row.mp.getEnvelopeInternal());
+            }
+        }
+        ArcTopology topology = new ArcTopology(rowList);
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            // finest first, so rows left invalid by simplifying can take the arcs of the zoom above
+            List<Coordinate[]> fallbackArcs = topology.arcList;
+            for (int zoom = maxZoom; zoom >= minZoom; zoom--) {
+                int z = zoom;
+                double tolerance = ZoomLevels.tolerance(zoom);
+                List<Coordinate[]> arcList = new ArrayList(topology.arcList);
+                ForEachTask.forEachIndex(pool, arcList.size(), i ->
+                        arcList.set(i, ArcTopology.simplify(arcList.get(i), tolerance)));
+                MultiPolygon[] geometries = topology.buildValid(arcList, fallbackArcs, factory, pool);
+                fallbackArcs = arcList;
+                Feature[] features = new Feature[rowList.size()];
+                ForEachTask.forEachIndex(pool, features.length, i -> {
+                    if (geometries[i] != null) {
+                        features[i] = new Feature(layerIndexList.get(i), rowList.get(i), geometries[i], z);
+                    }
+                });
+                Map<Long, List<Feature>> tileMap = new HashMap();
+                for (Feature feature: features) {
+                    if (feature != null) {
+                        addToTiles(tileMap, feature, zoom);
+                    }
+                }
+                List<Long> tileList = new ArrayList(tileMap.keySet());
+                ForEachTask.forEach(pool, tileList, key -> {
+                    try {
+                        writeTile(z, (int)(key >>> 32), (int)(long)key, tileMap.get(key), layerNames);
+                    } catch (IOException e) {
+                        throw new IllegalStateException("Unable to write tile", e);
+                    }
+                });
+                System.out.println("Tiles zoom " + zoom + ": " + tileList.size());
+            }
+        } finally {
+            pool.shutdown();
+        }
+        writeMetadata(layerNames, bounds);
+    }
+
+    protected void addToTiles(Map<Long, List<Feature>> tileMap, Feature feature, int zoom) {
+        int max = (1 << zoom) - 1;
+        int minX = Math.max(0, (int)Math.floor((feature.bounds.getMinX() - BUFFER) / MvtEncoder.EXTENT));
+        int maxX = Math.min(max, (int)Math.floor((feature.bounds.getMaxX() + BUFFER) / MvtEncoder.EXTENT));
+        int minY = Math.max(0, (int)Math.floor((feature.bounds.getMinY() - BUFFER) / MvtEncoder.EXTENT));
+        int maxY = Math.min(max, (int)Math.floor((feature.bounds.getMaxY() + BUFFER) / MvtEncoder.EXTENT));
+        for (int x = minX; x <= maxX; x++) {
+            for (int y = minY; y <= maxY; y++) {
+                long key = ((long)x << 32) | y;
+                List<Feature> featureList = tileMap.get(key);
+                if (featureList == null) {
+                    featureList = new ArrayList();
+                    tileMap.put(key, featureList);
+                }
+                featureList.add(feature);
+            }
+        }
+    }
+
+    protected void writeTile(int zoom, int x, int y, List<Feature> featureList, List<String> layerNames)
+            throws IOException {
+        MvtEncoder encoder = new MvtEncoder();
+        MvtEncoder.Layer[] layers = new MvtEncoder.Layer[layerNames.size()];
+        for (int i = 0; i < layers.length; i++) {
+            layers[i] = encoder.layer(layerNames.get(i));
+        }
+        double originX = (double)x * MvtEncoder.EXTENT;
+        double originY = (double)y * MvtEncoder.EXTENT;
+        Envelope tile = new Envelope(originX - BUFFER, originX + MvtEncoder.EXTENT + BUFFER,
+                originY - BUFFER, originY + MvtEncoder.EXTENT + BUFFER);
+        int count = 0;
+        for (Feature feature: featureList) {
+            List<int[]> ringList = new ArrayList();
+            for (int p = 0; p < feature.rings.length; p++) {
+                int[] shell = clip(feature.rings[p][0], feature.ringBounds[p][0], tile, originX, originY, true);
+                if (shell == null) {
+                    continue;
+                }
+                ringList.add(shell);
+                for (int r = 1; r < feature.rings[p].length; r++) {
+                    int[] hole = clip(feature.rings[p][r], feature.ringBounds[p][r], tile, originX, originY, false);
+                    if (hole != null) {
+                        ringList.add(hole);
+                    }
+                }
+            }
+            if (!ringList.isEmpty()) {
+                layers[feature.layerIndex].addPolygon(new String[] {"code", "name"},
+                        new String[] {feature.code, feature.name}, ringList);
+                count++;
+            }
+        }
+        if (count == 0) {
+            return;
+        }
+        byte[] data = encoder.encode();
+        File file = new File(dir, zoom + File.separator + x + File.separator + y + ".mvt");
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), data);
+        tileCount.incrementAndGet();
+        bytes.addAndGet(data.length);
+    }
+
+    /**
+     * Clip a projected ring to a buffered tile with Sutherland-Hodgman, then quantise it to tile
+     * coordinates and orient it for the tile format.
+     *
+     * @return interleaved tile coordinates, or null if nothing with area is left
+     */
+    protected static int[] clip(double[] ring, Envelope ringBounds, Envelope tile, double originX, double originY,
+                                boolean exterior) {
+        if (!ringBounds.intersects(tile)) {
+            return null;
+        }
+        double[] xy = ring;
+        if (!tile.contains(ringBounds)) {
+            xy = clipEdge(xy, 0, tile.getMinX(), true);
+            xy = clipEdge(xy, 0, tile.getMaxX(), false);
+            xy = clipEdge(xy, 1, tile.getMinY(), true);
+            xy = clipEdge(xy, 1, tile.getMaxY(), false);
+        }
+        int[] result = new int[xy.length];
+        int n = 0;
+        for (int i = 0; i < xy.length; i += 2) {
+            int x = (int)Math.round(xy[i] - originX);
+            int y = (int)Math.round(xy[i + 1] - originY);
+            if (n == 0 || x != result[n - 2] || y != result[n - 1]) {
+                result[n++] = x;
+                result[n++] = y;
+            }
+        }
+        while (n >= 4 && result[0] == result[n - 2] && result[1] == result[n - 1]) {
+            n -= 2;
+        }
+        if (n < 6) {
+            return null;
+        }
+        long area = 0;
+        for (int i = 0; i < n; i += 2) {
+            int j = (i + 2) % n;
+            area += (long)result[i] * result[j + 1] - (long)result[j] * result[i + 1];
+        }
+        if (area == 0) {
+            return null;
+        }
+        if ((area > 0) != exterior) {
+            for (int i = 0, j = n - 2; i < j; i += 2, j -= 2) {
+                int x = result[i];
+                int y = result[i + 1];
+                result[i] = result[j];
+                result[i + 1] = result[j + 1];
+                result[j] = x;
+                result[j + 1] = y;
+            }
+        }
+        int[] ringResult = new int[n];
+        System.arraycopy(result, 0, ringResult, 0, n);
+        return ringResult;
+    }
+
+    /**
+     * Clip a ring against one edge of the tile.
+     *
+     * @param axis 0 for x, 1 for y
+     * @param min true to keep values above the limit, false to keep values below it
+     */
+    protected static double[] clipEdge(double[] xy, int axis, double limit, boolean min) {
+        int points = xy.length / 2;
+        double[] result = new double[xy.length * 2];
+        int n = 0;
+        for (int i = 0; i < points; i++) {
+            int j = (i + 1) % points;
+            double a = xy[2 * i + axis];
+            double b = xy[2 * j + axis];
+            boolean aIn = min ? a >= limit : a <= limit;
+            boolean bIn = min ? b >= limit : b <= limit;
+            if (aIn) {
+                result[n++] = xy[2 * i];
+                result[n++] = xy[2 * i + 1];
+            }
+            if (aIn != bIn) {
+                double t = (limit - a) / (b - a);
+                double x = xy[2 * i] + t * (xy[2 * j] - xy[2 * i]);
+                double y = xy[2 * i + 1] + t * (xy[2 * j + 1] - xy[2 * i + 1]);
+                result[n++] = axis == 0 ? limit : x;
+                result[n++] = axis == 1 ? limit : y;
+            }
+        }
+        double[] clipped = new double[n];
+        System.arraycopy(result, 0, clipped, 0, n);
+        return clipped;
+    }
+
+    protected void writeMetadata(List<String> layerNames, Envelope bounds) throws IOException {
+        dir.mkdirs();
+        StringBuilder buf = new StringBuilder();
+        buf.append("{\"tilejson\": \"3.0.0\", \"tiles\": [\"{z}/{x}/{y}.mvt\"], \"minzoom\": ");
+        buf.append(minZoom);
+        buf.append(", \"maxzoom\": ");
+        buf.append(maxZoom);
+        buf.append(", \"bounds\": [");
+        buf.append(bounds.getMinX()).append(", ").append(bounds.getMinY()).append(", ");
+        buf.append(bounds.getMaxX()).append(", ").append(bounds.getMaxY());
+        buf.append("], \"vector_layers\": [");
+        for (int i = 0; i < layerNames.size(); i++) {
+            buf.append(i == 0 ? "" : ", ");
+            buf.append("{\"id\": \"").append(layerNames.get(i));
+            buf.append("\", \"fields\": {\"code\": \"String\", \"name\": \"String\"}}");
+        }
+        buf.append("]}\n");
+        try (Writer out = new OutputStreamWriter(new FileOutputStream(new File(dir, "metadata.json")),
+                StandardCharsets.UTF_8)) {
+            out.write(buf.toString());
+        }
+    }
+
+    /**
+     * A feature projected to Web Mercator world coordinates at one zoom, where a tile is EXTENT
+     * units wide. Rings are interleaved x and y without a closing point.
+     */
+    protected static class Feature {
+
+        protected int layerIndex;
+        protected String code;
+        protected String name;
+        protected double[][][] rings;
+        protected Envelope[][] ringBounds;
+        protected Envelope bounds = new Envelope();
+
+        protected Feature(int layerIndex, Row row, MultiPolygon mp, int zoom) {
+            this.layerIndex = layerIndex;
+            code = row.code;
+            name = row.name;
+            double size = (double)MvtEncoder.EXTENT * (1L << zoom);
+            rings = new double[mp.getNumGeometries()][][];
+            ringBounds = new Envelope[rings.length][];
+            for (int p = 0; p < rings.length; p++) {
+                Polygon polygon = (Polygon)mp.getGeometryN(p);
+                rings[p] = new double[polygon.getNumInteriorRing() + 1][];
+                ringBounds[p] = new Envelope[rings[p].length];
+                for (int r = 0; r < rings[p].length; r++) {
+                    LineString ring = r == 0 ? polygon.getExteriorRing() : polygon.getInteriorRingN(r - 1);
+                    Envelope env = new Envelope();
+                    rings[p][r] = project(ring.getCoordinates(), size, env);
+                    ringBounds[p][r] = env;
+                    bounds.expandToInclude(env);
+                }
+            }
+        }
+
+        protected static double[] project(Coordinate[] coords, double size, Envelope env) {
+            double[] xy = new double[2 * (coords.length - 1)];
+            for (int i = 0; i < coords.length - 1; i++) {
+                double lat = Math.toRadians(Math.max(-MAX_LATITUDE, Math.min(MAX_LATITUDE, coords[i].y)));
+                xy[2 * i] = (coords[i].x + 180.0) / 360.0 * size;
+                xy[2 * i + 1] = (1.0 - Math.log(Math.tan(lat) + 1.0 / Math.cos(lat)) / Math.PI) / 2.0 * size;
+                env.expandToInclude(xy[2 * i], xy[2 * i + 1]);
+            }
+            return xy;
+        }
+    }
+}
@@ -0,0 +1,237 @@
+/*
+ * Copyright (c) 2017 Peter Yuill
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package au.id.yuill.topothin.abs;
+
+import au.id.yuill.topothin.Row;
+
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Writes layers of thinned rows as a single quantised TopoJSON topology. The shared arcs found by
+ * ArcTopology are written once, quantised to integer positions and delta encoded, and each row is
+ * a MultiPolygon feature of its layer object that references them. The feature id is the row
+ * code, with the code and name as properties.
+ * <br><br>
+ * Neighbouring postcodes, LGAs, electoral divisions and states all use the same arcs along their
+ * shared borders, so a border is sent once rather than once for each feature of each layer that
+ * has it.
+ * <br><br>
+ * The topology can be streamed to a file and saved to the topology column of the topojson table
+ * under a name.
+ *
+ * @version 1.0
+ * @author Peter Yuill
+ */
+public class TopoJsonWriter {
+
+    protected int quantization;
+    protected File file;
+    protected String tableName;
+    public long bytes;
+
+    /**
+     * @param quantization the number of distinct positions across the bounds on each axis
+     * @param file the file to write, or null
+     * @param tableName the name to save the topology under in the topojson table, or null
+     */
+    public TopoJsonWriter(int quantization, File file, String tableName) {
+        this.quantization = quantization;
+        this.file = file;
+        this.tableName = tableName;
+    }
+
+    /**
+     * @return a writer configured from system properties, or null if neither topothin.topojson
+     * nor topothin.topojsonTable is set
+     */
+    public static TopoJsonWriter fromSystemProperties() {
+        String fileName = System.getProperty("topothin.topojson");
+        String tableName = System.getProperty("topothin.topojsonTable");
+        if (fileName == null && tableName == null) {
+            return null;
+        }
+        return new TopoJsonWriter(Integer.getInteger("topothin.topojsonQuantization", 1000000),
+                fileName == null ? null : new File(fileName), tableName);
+    }
+
+    /**
+     * Write the layers to the configured file and table. Rows with no geometry are left out.
+     */
+    public void export(Connection conn, Map<String, List<Row>> layerMap) throws Exception {
+        if (file != null) {
+            try (Writer out = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(file),
+                    StandardCharsets.UTF_8), BulkWriter.BUFFER_SIZE)) {
+                write(layerMap, out);
+            }
+            bytes += file.length();
+        }
+        if (tableName != null) {
+            StringWriter out = new StringWriter();
+            write(layerMap, out);
+            String topology = out.toString();
+            save(conn, tableName, topology);
+            bytes += topology.length();
+        }
+    }
+
+    /**
+     * Replace the topology saved under a name, creating the topojson table if needed.
+     */
+    public static void save(Connection conn, String name, String topology) throws Exception {
+        Statement stmt = conn.createStatement();
+        stmt.execute("create table if not exists topojson (name varchar(50) primary key, topology text)");
+        stmt.close();
+        boolean autoCommit = conn.getAutoCommit();
+        conn.setAutoCommit(false);
+        try {
+            PreparedStatement ps = conn.prepareStatement("delete from topojson where name = ?");
+            ps.setString(1, name);
+            ps.executeUpdate();
+            ps.close();
+            ps = conn.prepareStatement("insert into topojson (name, topology) values (?, ?)");
+            ps.setString(1, name);
+            ps.setString(2, topology);
+            ps.executeUpdate();
+            ps.close();
+            conn.commit();
+        } catch (Exception e) {
+            conn.rollback();
+            throw e;
+        } finally {
+            conn.setAutoCommit(autoCommit);
+        }
+    }
+
+    /**
+     * Write the layers as a TopoJSON topology, with one GeometryCollection object per layer in
+     * map order.
+     */
+    public void write(Map<String, List<Row>> layerMap, Writer out) throws IOException {
+        List<Row> rowList = new ArrayList();
+        Envelope bounds = new Envelope();
+        for (List<Row> layer: layerMap.values()) {
+            for (Row row: layer) {
+                if (row.mp != null) {
+                    rowList.add(row);
+                    bounds.expandToInclude(row.mp.getEnvelopeInternal());
+                }
+            }
+        }
+        ArcTopology topology = new ArcTopology(rowList);
+        double scaleX = bounds.getWidth() > 0.0 ? bounds.getWidth() / (quantization - 1) : 1.0;
+        double scaleY = bounds.getHeight() > 0.0 ? bounds.getHeight() / (quantization - 1) : 1.0;
+
+        StringBuilder buf = new StringBuilder();
+        buf.append("{\"type\":\"Topology\",\"bbox\":[");
+        buf.append(bounds.getMinX()).append(',').append(bounds.getMinY()).append(',');
+        buf.append(bounds.getMaxX()).append(',').append(bounds.getMaxY());
+        buf.append("],\"transform\":{\"scale\":[").append(scaleX).append(',').append(scaleY);
+        buf.append("],\"translate\":[").append(bounds.getMinX()).append(',').append(bounds.getMinY());
+        buf.append("]},\"objects\":{");
+        int rowIndex = 0;
+        boolean firstLayer = true;
+        for (Map.Entry<String, List<Row>> entry: layerMap.entrySet()) {
+            buf.append(firstLayer ? "" : ",");
+            firstLayer = false;
+            RunReport.appendString(buf, entry.getKey());
+            buf.append(":{\"type\":\"GeometryCollection\",\"geometries\":[");
+            boolean firstRow = true;
+            for (Row row: entry.getValue()) {
+                if (row.mp == null) {
+                    continue;
+                }
+                buf.append(firstRow ? "" : ",");
+                firstRow = false;
+                appendFeature(buf, row, topology.geometryList.get(rowIndex++));
+                flush(buf, out);
+            }
+            buf.append("]}");
+        }
+        buf.append("},\"arcs\":[");
+        for (int i = 0; i < topology.arcList.size(); i++) {
+            buf.append(i == 0 ? "" : ",");
+            appendArc(buf, topology.arcList.get(i), bounds, scaleX, scaleY);
+            flush(buf, out);
+        }
+        buf.append("]}\n");
+        out.write(buf.toString());
+    }
+
+    protected static void flush(StringBuilder buf, Writer out) throws IOException {
+        if (buf.length() >= BulkWriter.BUFFER_SIZE) {
+            out.write(buf.toString());
+            buf.setLength(0);
+        }
+    }
+
+    protected static void appendFeature(StringBuilder buf, Row row, int[][][] polygons) {
+        buf.append("{\"type\":\"MultiPolygon\",\"id\":");
+        RunReport.appendString(buf, row.code);
+        buf.append(",\"properties\":{\"code\":");
+        RunReport.appendString(buf, row.code);
+        buf.append(",\"name\":");
+        RunReport.appendString(buf, row.name);
+        buf.append("},\"arcs\":[");
+        for (int p = 0; p < polygons.length; p++) {
+            buf.append(p == 0 ? "[" : ",[");
+            for (int r = 0; r < polygons[p].length; r++) {
+                buf.append(r == 0 ? "[" : ",[");
+                for (int a = 0; a < polygons[p][r].length; a++) {
+                    buf.append(a == 0 ? "" : ",").append(polygons[p][r][a]);
+                }
+                buf.append(']');
+            }
+            buf.append(']');
+        }
+        buf.append("]}");
+    }
+
+    /**
+     * Append an arc as quantised positions, the first absolute and the rest as deltas from the
+     * previous position. Positions that quantise to the same point as the previous one are
+     * dropped, but the arc always keeps two positions so it still joins its end points.
+     */
+    protected void appendArc(StringBuilder buf, Coordinate[] arc, Envelope bounds, double scaleX, double scaleY) {
+        long lastX = quantize(arc[0].x, bounds.getMinX(), scaleX);
+        long lastY = quantize(arc[0].y, bounds.getMinY(), scaleY);
+        buf.append("[[").append(lastX).append(',').append(lastY).append(']');
+        int count = 1;
+        for (int i = 1; i < arc.length; i++) {
+            long x = quantize(arc[i].x, bounds.getMinX(), scaleX);
+            long y = quantize(arc[i].y, bounds.getMinY(), scaleY);
+            if (x != lastX || y != lastY || (i == arc.length - 1 && count == 1)) {
+                buf.append(",[").append(x - lastX).append(',').append(y - lastY).append(']');
+                lastX = x;
+                lastY = y;
+                count++;
+            }
+        }
+        buf.append(']');
+    }
+
+    protected static long quantize(double value, double origin, double scale) {
+        return Math.round((value - origin) / scale);
+    }
+}
@@ -0,0 +1,144 @@
+/*
+ * Copyright (c) 2017 Peter Yuill
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package au.id.yuill.topothin.abs;
+
+import org.locationtech.jts.geom.CoordinateSequence;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.LinearRing;
+import org.locationtech.jts.geom.MultiPolygon;
+import org.locationtech.jts.geom.Polygon;
+import org.locationtech.jts.io.ParseException;
+
+/**
+ * Reads polygonal geometry in Tiny Well-known Binary (TWKB) format, as produced by the PostGIS
+ * ST_AsTWKB function. TWKB stores coordinates as varint deltas at a fixed decimal precision and is
+ * typically a fraction of the size of WKB. Only Polygon and MultiPolygon are supported, and any
+ * Z or M values are discarded. TWKB carries no SRID so it is taken from the factory.
+ *
+ * @version 1.0
+ * @author Peter Yuill
+ */
+public class TwkbReader {
+
+    protected static final int POLYGON = 3;
+    protected static final int MULTIPOLYGON = 6;
+
+    protected static final int BBOX = 0x01;
+    protected static final int SIZE = 0x02;
+    protected static final int IDLIST = 0x04;
+    protected static final int EXTENDED = 0x08;
+    protected static final int EMPTY = 0x10;
+
+    protected GeometryFactory factory;
+    protected byte[] data;
+    protected int pos;
+    protected int dims;
+    protected double scale;
+    protected long[] last;
+
+    public TwkbReader(GeometryFactory factory) {
+        this.factory = factory;
+    }
+
+    public MultiPolygon read(byte[] bytes) throws ParseException {
+        data = bytes;
+        pos = 0;
+        int header = readByte();
+        int type = header & 0x0F;
+        scale = Math.pow(10.0, zigzag(header >> 4));
+        int metadata = readByte();
+        dims = 2;
+        if ((metadata & EXTENDED) != 0) {
+            int extended = readByte();
+            dims += (extended & 0x01) + ((extended >> 1) & 0x01);
+        }
+        if ((metadata & SIZE) != 0) {
+            readUnsigned();
+        }
+        if ((metadata & BBOX) != 0) {
+            for (int i = 0; i < dims * 2; i++) {
+                readSigned();
+            }
+        }
+        if ((metadata & EMPTY) != 0) {
+            return factory.createMultiPolygon(new Polygon[0]);
+        }
+        last = new long[dims];
+        if (type == POLYGON) {
+            return factory.createMultiPolygon(new Polygon[] {readPolygon()});
+        } else if (type == MULTIPOLYGON) {
+            int count = (int)readUnsigned();
+            if ((metadata & IDLIST) != 0) {
+                for (int i = 0; i < count; i++) {
+                    readSigned();
+                }
+            }
+            Polygon[] polygons = new Polygon[count];
+            for (int i = 0; i < count; i++) {
+                polygons[i] = readPolygon();
+            }
+            return factory.createMultiPolygon(polygons);
+        }
+        throw new ParseException("Unsupported TWKB geometry type " + type);
+    }
+
+    protected Polygon readPolygon() throws ParseException {
+        int count = (int)readUnsigned();
+        if (count == 0) {
+            return factory.createPolygon();
+        }
+        LinearRing shell = readRing();
+        LinearRing[] holes = new LinearRing[count - 1];
+        for (int i = 0; i < holes.length; i++) {
+            holes[i] = readRing();
+        }
+        return factory.createPolygon(shell, holes);
+    }
+
+    protected LinearRing readRing() throws ParseException {
+        int count = (int)readUnsigned();
+        CoordinateSequence seq = factory.getCoordinateSequenceFactory().create(count, 2);
+        for (int i = 0; i < count; i++) {
+            for (int d = 0; d < dims; d++) {
+                last[d] += readSigned();
+            }
+            seq.setOrdinate(i, CoordinateSequence.X, last[0] / scale);
+            seq.setOrdinate(i, CoordinateSequence.Y, last[1] / scale);
+        }
+        return factory.createLinearRing(seq);
+    }
+
+    protected int readByte() throws ParseException {
+        if (pos >= data.length) {
+            throw new ParseException("Unexpected end of TWKB data");
+        }
+        return data[pos++] & 0xFF;
+    }
+
+    protected long readUnsigned() throws ParseException {
+        long value = 0;
+        int shift = 0;
+        int b;
+        do {
+            b = readByte();
+            value |= (long)(b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return value;
+    }
+
+    protected long readSigned() throws ParseException {
+        long value = readUnsigned();
+        return (value >>> 1) ^ -(value & 1);
+    }
+
+    protected static int zigzag(int value) {
+        return (value >>> 1) ^ -(value & 1);
+    }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright (c) 2017 Peter Yuill
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package au.id.yuill.topothin.abs;
+
+import au.id.yuill.topothin.Row;
+
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.MultiPolygon;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+
+/**
+ * Additional display resolutions for a list of web map zoom levels. The arc topology of the
+ * thinned rows is built once, each arc is simplified for every level, and the rows of each level
+ * are rebuilt from its arcs, all in parallel. Levels are built from the finest to the coarsest,
+ * and rows left invalid by simplifying take the arcs of the next finer level, see
+ * ArcTopology.buildValid. Each level is saved to its own geom_z&lt;n&gt; and
+ * geojson_z&lt;n&gt; columns of the display tables.
+ * <br><br>
+ * The tolerance of a level is the size of one pixel of a 256 pixel tile at that zoom, in
+ * degrees, so levels are expected to be coarser than the default thinning. Rows whose rings all
+ * collapse at a level have null geometry at that level.
+ * <br><br>
+ * Levels are configured with the topothin.zooms system property, for example 4,6,8,10,12.
+ *
+ * @version 1.0
+ * @author Peter Yuill
+ */
+public class ZoomLevels {
+
+    public int[] zooms;
+    /** Geometry of each row by level, filled by simplify. */
+    public Map<Row, MultiPolygon[]> levelMap = new IdentityHashMap();
+
+    public ZoomLevels(int[] zooms) {
+        this.zooms = zooms;
+    }
+
+    /**
+     * @return the levels from the topothin.zooms system property, or null if it is not set
+     */
+    public static ZoomLevels fromSystemProperties() {
+        String value = System.getProperty("topothin.zooms");
+        if (value == null || value.trim().isEmpty()) {
+            return null;
+        }
+        String[] parts = value.split(",");
+        int[] zooms = new int[parts.length];
+        for (int i = 0; i < parts.length; i++) {
+            zooms[i] = Integer.parseInt(parts[i].trim());
+        }
+        return new ZoomLevels(zooms);
+    }
+
+    public static double tolerance(int zoom) {
+        return 360.0 / (256L << zoom);
+    }
+
+    /**
+     * @return the column suffix of each level, starting with the empty suffix of the default
+     * thinned geometry
+     */
+    public List<String> suffixList() {
+        List<String> suffixList = new ArrayList();
+        suffixList.add("");
+        for (int zoom: zooms) {
+            suffixList.add("_z" + zoom);
+        }
+        return suffixList;
+    }
+
+    /**
+     * Get the geometry of a row at every resolution, starting with the default thinned geometry.
+     */
+    public MultiPolygon[] geometries(Row row) {
+        MultiPolygon[] result = new MultiPolygon[zooms.length + 1];
+        result[0] = row.mp;
+        MultiPolygon[] levels = levelMap.get(row);
+        if (levels != null) {
+            System.arraycopy(levels, 0, result, 1, levels.length);
+        }
+        return result;
+    }
+
+    /**
+     * Simplify the thinned rows for every level.
+     */
+    public void simplify(List<Row> rowList, GeometryFactory factory, int threads) throws Exception {
+        ArcTopology topology = new ArcTopology(rowList);
+        Integer[] order = new Integer[zooms.length];
+        for (int level = 0; level < zooms.length; level++) {
+            order[level] = level;
+        }
+        Arrays.sort(order, (a, b) -> Integer.compare(zooms[b], zooms[a]));
+        MultiPolygon[][] result = new MultiPolygon[rowList.size()][zooms.length];
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            List<Coordinate[]> fallbackArcs = topology.arcList;
+            for (int level: order) {
+                double tolerance = tolerance(zooms[level]);
+                List<Coordinate[]> arcList = new ArrayList(topology.arcList);
+                ForEachTask.forEachIndex(pool, arcList.size(), i ->
+                        arcList.set(i, ArcTopology.simplify(arcList.get(i), tolerance)));
+                MultiPolygon[] levelResult = topology.buildValid(arcList, fallbackArcs, factory, pool);
+                for (int i = 0; i < rowList.size(); i++) {
+                    result[i][level] = levelResult[i];
+                }
+                fallbackArcs = arcList;
+            }
+        } finally {
+            pool.shutdown();
+        }
+        for (int i = 0; i < rowList.size(); i++) {
+            levelMap.put(rowList.get(i), result[i]);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * Copyright (c) 2017 Peter Yuill
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package au.id.yuill.topothin.abs;
+
+import org.junit.Test;
+import org.locationtech.jts.geom.Envelope;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Checks that the curve visits every cell of the corner block once and only steps between adjacent cells.
+ *
+ * @version 1.0
+ * @author Peter Yuill
+ */
+public class HilbertOrderTest {
+
+    @Test
+    public void visitsAdjacentCells() {
+        // one unit per cell, so the first 256 * 256 keys fill the 256 cell block at the origin
+        Envelope bounds = new Envelope(0, 1 << HilbertOrder.BITS, 0, 1 << HilbertOrder.BITS);
+        int size = 256;
+        int[] xs = new int[size * size];
+        int[] ys = new int[size * size];
+        boolean[] seen = new boolean[size * size];
+        for (int x = 0; x < size; x++) {
+            for (int y = 0; y < size; y++) {
+                long key = HilbertOrder.key(x + 0.5, y + 0.5, bounds);
+                assertTrue("key " + key + " outside the block", key >= 0 && key < seen.length);
+                assertTrue("key " + key + " repeated", !seen[(int)key]);
+                seen[(int)key] = true;
+                xs[(int)key] = x;
+                ys[(int)key] = y;
+            }
+        }
+        for (int d = 1; d < seen.length; d++) {
+            assertEquals("step to key " + d, 1, Math.abs(xs[d] - xs[d - 1]) + Math.abs(ys[d] - ys[d - 1]));
+        }
+    }
+
+    @Test
+    public void clampsToBounds() {
+        Envelope bounds = new Envelope(140, 150, -40, -30);
+        assertEquals(HilbertOrder.key(140, -40, bounds), HilbertOrder.key(100, -50, bounds));
+        assertEquals(HilbertOrder.key(150, -30, bounds), HilbertOrder.key(160, -20, bounds));
+    }
+}
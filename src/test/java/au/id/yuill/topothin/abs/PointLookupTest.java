@@ -0,0 +1,107 @@
+/*
+ * Copyright (c) 2017 Peter Yuill
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package au.id.yuill.topothin.abs;
+
+import org.junit.Test;
+import org.locationtech.jts.geom.Coordinate;
+import org.locationtech.jts.geom.Envelope;
+import org.locationtech.jts.geom.Geometry;
+import org.locationtech.jts.geom.GeometryFactory;
+import org.locationtech.jts.geom.Point;
+import org.locationtech.jts.geom.Polygon;
+import org.locationtech.jts.triangulate.VoronoiDiagramBuilder;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/**
+ * Checks grid lookups against a brute force contains over every area, on a layer of Voronoi cells
+ * with some cells removed so that points can fall outside every area.
+ *
+ * @version 1.0
+ * @author Peter Yuill
+ */
+public class PointLookupTest {
+
+    protected static final Envelope EXTENT = new Envelope(140, 150, -40, -30);
+
+    protected GeometryFactory factory = new GeometryFactory();
+
+    @Test
+    public void matchesBruteForce() {
+        List<AdminArea> areaList = areas(400, 7);
+        PointLookup lookup = new PointLookup();
+        lookup.addLayer("test", areaList);
+
+        Random random = new Random(1);
+        int points = 20000;
+        double[] xs = new double[points];
+        double[] ys = new double[points];
+        for (int i = 0; i < points; i++) {
+            xs[i] = EXTENT.getMinX() - 0.5 + random.nextDouble() * (EXTENT.getWidth() + 1);
+            ys[i] = EXTENT.getMinY() - 0.5 + random.nextDouble() * (EXTENT.getHeight() + 1);
+        }
+        String[][] batch = lookup.lookup(xs, ys);
+        for (int i = 0; i < points; i++) {
+            String expected = bruteForce(areaList, xs[i], ys[i]);
+            assertEquals(expected, lookup.lookup(0, xs[i], ys[i]));
+            assertEquals(expected, batch[i][0]);
+        }
+    }
+
+    @Test
+    public void missesNaN() {
+        PointLookup lookup = new PointLookup();
+        lookup.addLayer("test", areas(50, 0));
+        assertNull(lookup.lookup(0, Double.NaN, -35));
+        assertNull(lookup.lookup(0, 145, Double.NaN));
+    }
+
+    /**
+     * @return Voronoi cells of random sites clipped to the extent, dropping every gap'th cell if gap is not 0
+     */
+    protected List<AdminArea> areas(int sites, int gap) {
+        Random random = new Random(sites);
+        List<Coordinate> siteList = new ArrayList();
+        for (int i = 0; i < sites; i++) {
+            siteList.add(new Coordinate(EXTENT.getMinX() + random.nextDouble() * EXTENT.getWidth(),
+                    EXTENT.getMinY() + random.nextDouble() * EXTENT.getHeight()));
+        }
+        VoronoiDiagramBuilder builder = new VoronoiDiagramBuilder();
+        builder.setSites(siteList);
+        builder.setClipEnvelope(EXTENT);
+        Geometry cells = builder.getDiagram(factory);
+        Geometry clip = factory.toGeometry(EXTENT);
+        List<AdminArea> areaList = new ArrayList();
+        for (int i = 0; i < cells.getNumGeometries(); i++) {
+            if (gap != 0 && i % gap == 0) {
+                continue;
+            }
+            AdminArea area = new AdminArea();
+            area.code = Integer.toString(i);
+            area.geom = factory.createMultiPolygon(new Polygon[] {(Polygon)cells.getGeometryN(i).intersection(clip)});
+            areaList.add(area);
+        }
+        return areaList;
+    }
+
+    protected String bruteForce(List<AdminArea> areaList, double x, double y) {
+        Point point = factory.createPoint(new Coordinate(x, y));
+        for (AdminArea area: areaList) {
+            if (area.geom.contains(point)) {
+                return area.code;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,174 @@
+/*
+ * Copyright (c) 2017 Peter Yuill
+ *
+ * All rights reserved. This program and the accompanying materials
+ * are made available under the terms of the Eclipse Public License v1.0
+ * which accompanies this distribution.
+ * The Eclipse Public License is available at http://www.eclipse.org/legal/epl-v10.html
+ */
+package au.id.yuill.topothin.abs;
+
+import au.id.yuill.topothin.Row;
+
+import org.junit.Test;
+import org.locationtech.jts.geom.MultiPolygon;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+/**
+ * Reads a generated LGA shapefile with a hole, a multipart shape, a null shape, a deleted record,
+ * an island in a hole and a UTF-8 name.
+ *
+ * @version 1.0
+ * @author Peter Yuill
+ */
+public class ShapefileSourceTest {
+
+    protected static final Object[][] RECORDS = {
+            {"1001", "Alpha \u00dcn\u00efcode", "1", new double[][] {square(0, 0, 10, 10, true), square(2, 2, 4, 4, false)}},
+            {"1002", "Beta", "1", new double[][] {square(20, 0, 30, 10, true), square(40, 0, 50, 10, true)}},
+            {"1003", "Null", "2", null},
+            {"1004", "Deleted", "2", new double[][] {square(60, 0, 70, 10, true)}},
+            {"1005", "Gamma", "2", new double[][] {square(0, 20, 10, 30, true), square(1, 21, 9, 29, false),
+                    square(3, 23, 5, 25, true)}},
+    };
+
+    @Test
+    public void readsRows() throws Exception {
+        File dir = Files.createTempDirectory("shapefile").toFile();
+        try {
+            write(dir);
+            LgaTable table = new LgaTable("16", null);
+            table.setSnapshotCache(null);
+            table.setGeometrySource(new ShapefileSource(dir));
+            List<Row> rowList = new ArrayList();
+            new ConcurrentLoader(null, null, null, 2).load(Arrays.asList((AbsTable)table), rowList::add);
+
+            assertEquals(3, rowList.size());
+            assertRow(rowList.get(0), "1001", "Alpha \u00dcn\u00efcode", "1", 1, 96.0);
+            assertRow(rowList.get(1), "1002", "Beta", "1", 2, 200.0);
+            assertRow(rowList.get(2), "1005", "Gamma", "2", 2, 40.0);
+            assertEquals(1, ((org.locationtech.jts.geom.Polygon)rowList.get(0).mp.getGeometryN(0)).getNumInteriorRing());
+
+            List<String[]> attributeList = table.getGeometrySource().readAttributes(table, "ste_code16", "lga_name16");
+            assertEquals(3, attributeList.size());
+            assertEquals("Alpha \u00dcn\u00efcode", attributeList.get(0)[1]);
+            assertEquals("2", attributeList.get(2)[0]);
+        } finally {
+            for (File file: dir.listFiles()) {
+                file.delete();
+            }
+            dir.delete();
+        }
+    }
+
+    protected static void assertRow(Row row, String code, String name, String stateCode, int parts, double area) {
+        MultiPolygon mp = row.mp;
+        assertEquals(code, row.code);
+        assertEquals(name, row.name);
+        assertEquals(stateCode, ((LgaRow)row).stateCode);
+        assertEquals(parts, mp.getNumGeometries());
+        assertEquals(area, mp.getArea(), 1e-9);
+        assertEquals(AbsTable.SRID, mp.getSRID());
+        assertTrue(mp.isValid());
+    }
+
+    /**
+     * @return the closed ring of a rectangle as x, y pairs, clockwise for a shell
+     */
+    protected static double[] square(double x0, double y0, double x1, double y1, boolean clockwise) {
+        double[] ring = {x0, y0, x0, y1, x1, y1, x1, y0, x0, y0};
+        if (!clockwise) {
+            for (int i = 0; i < 5; i += 2) {
+                double x = ring[i];
+                double y = ring[i + 1];
+                ring[i] = ring[8 - i];
+                ring[i + 1] = ring[9 - i];
+                ring[8 - i] = x;
+                ring[9 - i] = y;
+            }
+        }
+        return ring;
+    }
+
+    protected static void write(File dir) throws IOException {
+        ByteBuffer records = ByteBuffer.allocate(1 << 16);
+        for (int r = 0; r < RECORDS.length; r++) {
+            double[][] rings = (double[][])RECORDS[r][3];
+            ByteBuffer content = ByteBuffer.allocate(1 << 12).order(ByteOrder.LITTLE_ENDIAN);
+            if (rings == null) {
+                content.putInt(0);
+            } else {
+                int points = 0;
+                double minX = Double.MAX_VALUE, minY = Double.MAX_VALUE, maxX = -Double.MAX_VALUE, maxY = -Double.MAX_VALUE;
+                for (double[] ring: rings) {
+                    points += ring.length / 2;
+                    for (int i = 0; i < ring.length; i += 2) {
+                        minX = Math.min(minX, ring[i]);
+                        maxX = Math.max(maxX, ring[i]);
+                        minY = Math.min(minY, ring[i + 1]);
+                        maxY = Math.max(maxY, ring[i + 1]);
+                    }
+                }
+                content.putInt(5).putDouble(minX).putDouble(minY).putDouble(maxX).putDouble(maxY);
+                content.putInt(rings.length).putInt(points);
+                int start = 0;
+                for (double[] ring: rings) {
+                    content.putInt(start);
+                    start += ring.length / 2;
+                }
+                for (double[] ring: rings) {
+                    for (double ordinate: ring) {
+                        content.putDouble(ordinate);
+                    }
+                }
+            }
+            records.order(ByteOrder.BIG_ENDIAN).putInt(r + 1).putInt(content.position() / 2);
+            records.put(content.array(), 0, content.position());
+        }
+        ByteBuffer shp = ByteBuffer.allocate(100 + records.position());
+        shp.order(ByteOrder.BIG_ENDIAN).putInt(9994).putInt(0).putInt(0).putInt(0).putInt(0).putInt(0);
+        shp.putInt(shp.capacity() / 2);
+        shp.order(ByteOrder.LITTLE_ENDIAN).putInt(1000).putInt(5);
+        shp.putDouble(0).putDouble(0).putDouble(70).putDouble(30).putDouble(0).putDouble(0).putDouble(0).putDouble(0);
+        shp.put(records.array(), 0, records.position());
+        Files.write(new File(dir, "LGA_2016_AUST.shp").toPath(), shp.array());
+
+        String[] names = {"LGA_CODE16", "LGA_NAME16", "STE_CODE16"};
+        int[] lengths = {5, 50, 1};
+        int recordLength = 1 + 5 + 50 + 1;
+        int headerLength = 32 + 32 * names.length + 1;
+        ByteBuffer dbf = ByteBuffer.allocate(headerLength + recordLength * RECORDS.length + 1).order(ByteOrder.LITTLE_ENDIAN);
+        dbf.put((byte)3).put((byte)117).put((byte)1).put((byte)1).putInt(RECORDS.length);
+        dbf.putShort((short)headerLength).putShort((short)recordLength).put(new byte[20]);
+        for (int f = 0; f < names.length; f++) {
+            dbf.put(Arrays.copyOf(names[f].getBytes(StandardCharsets.US_ASCII), 11)).put((byte)'C').put(new byte[4]);
+            dbf.put((byte)lengths[f]).put(new byte[15]);
+        }
+        dbf.put((byte)'\r');
+        for (Object[] record: RECORDS) {
+            dbf.put((byte)(record[0].equals("1004") ? '*' : ' '));
+            for (int f = 0; f < names.length; f++) {
+                byte[] value = ((String)record[f]).getBytes(StandardCharsets.UTF_8);
+                byte[] field = new byte[lengths[f]];
+                Arrays.fill(field, (byte)' ');
+                System.arraycopy(value, 0, field, 0, value.length);
+                dbf.put(field);
+            }
+        }
+        dbf.put((byte)0x1a);
+        Files.write(new File(dir, "LGA_2016_AUST.dbf").toPath(), dbf.array());
+        Files.write(new File(dir, "LGA_2016_AUST.cpg").toPath(), "UTF-8".getBytes(StandardCharsets.US_ASCII));
+    }
+}